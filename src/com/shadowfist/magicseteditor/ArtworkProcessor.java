@@ -0,0 +1,513 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Finds the artwork for cards, either as files in a local directory or at
+ * URLs under a base URL, and scales it down to the size of a card frame as
+ * JPG files ready to be stored in the mse-set.
+ * <p>
+ * A card's artwork is the file named like its title, or its title and
+ * subtitle, ignoring case, spaces and punctuation, e.g.
+ * <code>All the Power.jpg</code> or <code>all-the-power-edge.png</code>.
+ * For a base URL the title is appended to it with ".jpg".
+ * <p>
+ * Images are decoded and scaled on a pool of threads. The source, decoded
+ * pixels and scaled copy of the images being worked on at once are kept
+ * within a memory budget, and large
+ * images are subsampled while decoding so they never need their full size
+ * in memory. Results are cached by the SHA-1 of the source file so artwork
+ * that hasn't changed is not processed again, and the images written longest
+ * ago are deleted once the cache is over its size.
+ *
+ * @author cgreene
+ */
+public class ArtworkProcessor
+{
+    /** The largest size of a card frame in MSE, in pixels. */
+    public static final int CARD_WIDTH = 375;
+    public static final int CARD_HEIGHT = 523;
+    public static final float JPG_QUALITY = 0.9f;
+    /** The most bytes of scaled images to keep in the cache by default. */
+    public static final long DEFAULT_CACHE_SIZE = 256L * 1024 * 1024;
+    private static final String[] EXTENSIONS = { ".jpg", ".jpeg", ".png", ".gif", ".bmp" };
+
+    private final String source;
+    private final Path cacheDirectory;
+    private final BuildContext context;
+    private final boolean debug;
+    private final BuildListener listener;
+    private final MemoryBudget memory;
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+
+    /**
+     * Create a processor.
+     *
+     * @param source a local directory or a base URL to find artwork in
+     * @param cacheDirectory where to keep the scaled images
+     * @param memoryBudget the most bytes of artwork to hold in memory at once
+     * @param context the build, for its listener, network timeout and
+     *            cancellation
+     */
+    public ArtworkProcessor(String source, Path cacheDirectory, long memoryBudget, BuildContext context)
+    {
+        this(source, cacheDirectory, new MemoryBudget(memoryBudget), context);
+    }
+
+    /**
+     * Create a processor that keeps the artwork in memory within a budget it
+     * may share with other processors.
+     *
+     * @param source a local directory or a base URL to find artwork in
+     * @param cacheDirectory where to keep the scaled images
+     * @param memory the budget of artwork to hold in memory at once
+     * @param context the build, for its listener, network timeout and
+     *            cancellation
+     */
+    public ArtworkProcessor(String source, Path cacheDirectory, MemoryBudget memory, BuildContext context)
+    {
+        this.source = source;
+        this.cacheDirectory = cacheDirectory.resolve(CARD_WIDTH + "x" + CARD_HEIGHT);
+        this.context = context;
+        this.debug = context.getConfig().isDebug();
+        this.listener = context.getListener();
+        this.memory = memory;
+    }
+
+    /**
+     * @param cacheSize the most bytes of scaled images to keep in the cache;
+     *            the images of the last build are kept even if they are
+     *            more
+     */
+    public void setCacheSize(long cacheSize)
+    {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Find, scale and cache the artwork of the cards. Cards without artwork
+     * are left out of the result, and so are cards whose artwork couldn't be
+     * read, after a warning is given to the listener.
+     *
+     * @param titles the title and subtitle of each card
+     * @return the {@link CardDiff#key(String, String)} of each card that has
+     *         artwork mapped to its scaled JPG file, so cards with the same
+     *         title and different subtitles keep their own artwork
+     * @throws IOException if the artwork directory or cache can't be used
+     */
+    public Map<String, Path> process(List<String[]> titles) throws IOException
+    {
+        Files.createDirectories(cacheDirectory);
+        Map<String, Path> localFiles = isUrl(source)? null : listImages(Paths.get(source));
+
+        // find the source of each card's art; cards can share art
+        Map<String, Object> sources = new LinkedHashMap<>();
+        for (String[] title : titles)
+        {
+            Object art = (localFiles != null)? findLocal(localFiles, title) : findUrl(title[0]);
+            if (art != null)
+            {
+                sources.put(CardDiff.key(title[0], title[1]), art);
+            }
+            else if (debug)
+            {
+                listener.message("No artwork found for " + title[0]);
+            }
+        }
+
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), sources.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            Map<String, Future<Path>> scaled = new HashMap<>();
+            for (final Object art : sources.values())
+            {
+                if (!scaled.containsKey(art.toString()))
+                {
+                    scaled.put(art.toString(), pool.submit(new Callable<Path>()
+                    {
+                        @Override
+                        public Path call() throws IOException, InterruptedException
+                        {
+                            return scale(art);
+                        }
+                    }));
+                }
+            }
+
+            Map<String, Path> images = new LinkedHashMap<>();
+            int done = 0;
+            for (Map.Entry<String, Object> card : sources.entrySet())
+            {
+                context.checkCancelled();
+                listener.progress(BuildListener.Stage.ARTWORK, ++done, sources.size());
+                try
+                {
+                    images.put(card.getKey(), scaled.get(card.getValue().toString()).get());
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof CancellationException)
+                    {
+                        throw (CancellationException) e.getCause();
+                    }
+                    if (e.getCause() instanceof FileNotFoundException && !debug)
+                    {
+                        // no artwork at the URL for this card
+                        continue;
+                    }
+                    listener.message("Could not use the artwork " + card.getValue() + " for "
+                        + card.getKey().replace('\u0000', ' ').trim() + ": " + e.getCause());
+                }
+            }
+            evictCache(images.values());
+            return images;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing artwork.", e);
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Read the artwork, and unless it's already in the cache, decode it,
+     * scale it to fit a card frame and write it to the cache as a JPG file.
+     * Downloads are saved to a file first, so the source is never held in
+     * memory whole, and the memory budget covers the source, the decoded
+     * pixels and the scaled image and its JPG together.
+     *
+     * @param art a local file or URL
+     * @return the cached JPG file
+     * @throws IOException if the artwork can't be read or decoded
+     */
+    private Path scale(Object art) throws IOException, InterruptedException
+    {
+        context.checkCancelled();
+        Path file = (art instanceof Path)? (Path) art : download((URL) art);
+        try
+        {
+            Path cached = cacheDirectory.resolve(sha1(file) + ".jpg");
+            if (Files.exists(cached))
+            {
+                if (debug)
+                    listener.message("Using cached artwork " + cached + " for " + art);
+                return cached;
+            }
+            return scale(art, file, cached);
+        }
+        finally
+        {
+            if (file != art)
+            {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private Path scale(Object art, Path file, Path cached) throws IOException, InterruptedException
+    {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile()))
+        {
+            Iterator<ImageReader> readers = (in == null)? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext())
+            {
+                throw new IOException("Unknown image format.");
+            }
+            ImageReader reader = readers.next();
+            try
+            {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0), height = reader.getHeight(0);
+
+                // skip whole rows and columns while decoding if the image is
+                // at least twice the size needed
+                int subsampling = Math.max(1, Math.min(width / CARD_WIDTH, height / CARD_HEIGHT));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                long pixels = (long) (width / subsampling + 1) * (height / subsampling + 1);
+                // the source the reader may buffer, the decoded pixels, and
+                // the scaled image with its JPG
+                long bytes = Files.size(file) + pixels * 8 + (long) CARD_WIDTH * CARD_HEIGHT * (4 + 3);
+                int permits = memory.acquire(bytes);
+                byte[] jpg;
+                try
+                {
+                    BufferedImage image = reader.read(0, param);
+                    jpg = toJpg(fit(image));
+                }
+                finally
+                {
+                    memory.release(permits);
+                }
+
+                Path temp = Files.createTempFile(cacheDirectory, "art", ".tmp");
+                try
+                {
+                    Files.write(temp, jpg);
+                    Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING);
+                }
+                finally
+                {
+                    Files.deleteIfExists(temp);
+                }
+                if (debug)
+                    listener.message("Scaled artwork " + art + " from " + width + "x" + height + " to " + cached);
+                return cached;
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Delete the scaled images written longest ago until the cache is within
+     * its size, never deleting the images of this build.
+     *
+     * @param inUse the images of this build
+     */
+    private void evictCache(Collection<Path> inUse) throws IOException
+    {
+        final Map<Path, FileTime> written = new HashMap<>();
+        long size = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDirectory, "*.jpg"))
+        {
+            for (Path file : files)
+            {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                written.put(file, attributes.lastModifiedTime());
+                size += attributes.size();
+            }
+        }
+        List<Path> oldestFirst = new ArrayList<>(written.keySet());
+        Collections.sort(oldestFirst, new Comparator<Path>()
+        {
+            @Override
+            public int compare(Path a, Path b)
+            {
+                return written.get(a).compareTo(written.get(b));
+            }
+        });
+        for (Path file : oldestFirst)
+        {
+            if (size <= cacheSize)
+            {
+                break;
+            }
+            if (!inUse.contains(file))
+            {
+                size -= Files.size(file);
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Scale the image down, keeping its shape, so it fits in a card frame,
+     * and drop any transparency since JPG files can't have it.
+     */
+    private static BufferedImage fit(BufferedImage image)
+    {
+        double scale = Math.min(1.0, Math.min((double) CARD_WIDTH / image.getWidth(),
+            (double) CARD_HEIGHT / image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage fitted = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = fitted.createGraphics();
+        try
+        {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, java.awt.Color.WHITE, null);
+        }
+        finally
+        {
+            graphics.dispose();
+        }
+        return fitted;
+    }
+
+    private static byte[] toJpg(BufferedImage image) throws IOException
+    {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ByteArrayOutputStream jpg = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(jpg))
+        {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        finally
+        {
+            writer.dispose();
+        }
+        return jpg.toByteArray();
+    }
+
+    /**
+     * Map the simplified name of each image file in the directory to the
+     * file, using one pass over the directory.
+     */
+    private static Map<String, Path> listImages(Path directory) throws IOException
+    {
+        Map<String, Path> images = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+            {
+                String name = file.getFileName().toString();
+                String lower = name.toLowerCase(Locale.ENGLISH);
+                for (String extension : EXTENSIONS)
+                {
+                    if (lower.endsWith(extension))
+                    {
+                        images.put(simplify(name.substring(0, name.length() - extension.length())), file);
+                        break;
+                    }
+                }
+            }
+        }
+        return images;
+    }
+
+    private static Path findLocal(Map<String, Path> images, String[] title)
+    {
+        Path art = images.get(simplify(title[0] + title[1]));
+        return (art != null)? art : images.get(simplify(title[0]));
+    }
+
+    private URL findUrl(String title) throws IOException
+    {
+        String base = source.endsWith("/")? source : source + "/";
+        return new URL(base + URLEncoder.encode(title, "UTF-8").replace("+", "%20") + ".jpg");
+    }
+
+    private Path download(URL url) throws IOException
+    {
+        Path file = Files.createTempFile(cacheDirectory, "download", ".tmp");
+        try (InputStream in = Main.openStream(context, url))
+        {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+            return file;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    private static String simplify(String name)
+    {
+        StringBuilder simple = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++)
+        {
+            char ch = name.charAt(i);
+            if (Character.isLetterOrDigit(ch))
+            {
+                simple.append(Character.toLowerCase(ch));
+            }
+        }
+        return simple.toString();
+    }
+
+    private static String sha1(Path file) throws IOException
+    {
+        try (InputStream in = Files.newInputStream(file))
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[16 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+            {
+                digest.update(buffer, 0, n);
+            }
+            StringBuilder hex = new StringBuilder(40);
+            for (byte b : digest.digest())
+            {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-1 is not available.", e);
+        }
+    }
+
+    /**
+     * Return true if the mse-set entry is scaled artwork, which is named by
+     * the SHA-1 of its source.
+     *
+     * @param name the entry name
+     * @return true for names like <code>0a1b...9f.jpg</code>
+     */
+    public static boolean isArtworkEntry(String name)
+    {
+        return name.length() == 44 && name.matches("[0-9a-f]{40}\\.jpg");
+    }
+
+    /**
+     * Return true if the artwork source is a URL rather than a directory.
+     *
+     * @param source the artwork source
+     * @return true for URLs like http://... or file:///...
+     */
+    public static boolean isUrl(String source)
+    {
+        return source.matches("[a-zA-Z][a-zA-Z0-9+.-]+://.*");
+    }
+}
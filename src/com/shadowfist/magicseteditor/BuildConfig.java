@@ -0,0 +1,385 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The settings of one build, from the command line or a caller. A config
+ * can't be changed once built, so any number of builds can share one and
+ * run at the same time. Make one with a {@link Builder}, like
+ * <pre>
+ * BuildConfig config = BuildConfig.builder()
+ *     .inputUrl(new URL("file:///C:/tmp/cards.csv"))
+ *     .mseSetFile(Paths.get("C:/tmp/playtest.mse-set"))
+ *     .copyright("playtest round 1")
+ *     .build();
+ * </pre>
+ *
+ * @author cgreene
+ */
+public final class BuildConfig
+{
+    /** How long to wait to connect to or read from a URL, in milliseconds. */
+    public static final int DEFAULT_NETWORK_TIMEOUT = 30000;
+    /** How long to wait for MSE to answer a command, in milliseconds. */
+    public static final int DEFAULT_MSE_TIMEOUT = 60000;
+    /** How many bytes of exported card images to keep between builds. */
+    public static final long DEFAULT_IMAGE_CACHE_SIZE = 512L * 1024 * 1024;
+
+    private final URL inputUrl;
+    private final Path mseSetFile;
+    private final Path mseExe;
+    private final String copyright;
+    private final boolean debug;
+    private final CardQuery filter;
+    private final Path snapshot;
+    private final URL diffUrl;
+    private final boolean changedOnly;
+    private final boolean merge;
+    private final String artSource;
+    private final int networkTimeout;
+    private final int mseTimeout;
+    private final Path imageDirectory;
+    private final long imageCacheSize;
+    private final MemoryBudget artworkMemory;
+
+    private BuildConfig(Builder builder)
+    {
+        this.inputUrl = builder.inputUrl;
+        this.mseSetFile = builder.mseSetFile;
+        this.mseExe = builder.mseExe;
+        this.copyright = builder.copyright;
+        this.debug = builder.debug;
+        this.filter = builder.filter;
+        this.snapshot = builder.snapshot;
+        this.diffUrl = builder.diffUrl;
+        this.changedOnly = builder.changedOnly;
+        this.merge = builder.merge;
+        this.artSource = builder.artSource;
+        this.networkTimeout = builder.networkTimeout;
+        this.mseTimeout = builder.mseTimeout;
+        this.imageDirectory = builder.imageDirectory;
+        this.imageCacheSize = builder.imageCacheSize;
+        this.artworkMemory = builder.artworkMemory;
+    }
+
+    /**
+     * @return a builder with nothing set
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * @return a builder starting from the settings of this config
+     */
+    public Builder toBuilder()
+    {
+        Builder builder = new Builder();
+        builder.inputUrl = inputUrl;
+        builder.mseSetFile = mseSetFile;
+        builder.mseExe = mseExe;
+        builder.copyright = copyright;
+        builder.debug = debug;
+        builder.filter = filter;
+        builder.snapshot = snapshot;
+        builder.diffUrl = diffUrl;
+        builder.changedOnly = changedOnly;
+        builder.merge = merge;
+        builder.artSource = artSource;
+        builder.networkTimeout = networkTimeout;
+        builder.mseTimeout = mseTimeout;
+        builder.imageDirectory = imageDirectory;
+        builder.imageCacheSize = imageCacheSize;
+        builder.artworkMemory = artworkMemory;
+        return builder;
+    }
+
+    /**
+     * @return the CSV file, snapshot or mse-set to read the cards from
+     */
+    public URL getInputUrl()
+    {
+        return inputUrl;
+    }
+
+    /**
+     * @return the mse-set file to write
+     */
+    public Path getMseSetFile()
+    {
+        return mseSetFile;
+    }
+
+    /**
+     * @return the MSE executable, or null to skip exporting images
+     */
+    public Path getMseExe()
+    {
+        return mseExe;
+    }
+
+    /**
+     * @return the copyright statement put on every card
+     */
+    public String getCopyright()
+    {
+        return copyright;
+    }
+
+    /**
+     * @return true to provide more output
+     */
+    public boolean isDebug()
+    {
+        return debug;
+    }
+
+    /**
+     * @return the filter selecting the cards to build, or null for every card
+     */
+    public CardQuery getFilter()
+    {
+        return filter;
+    }
+
+    /**
+     * @return the file to write a {@link CardSnapshot} of the cards to, or
+     *         null
+     */
+    public Path getSnapshot()
+    {
+        return snapshot;
+    }
+
+    /**
+     * @return the previous version of the cards to compare with, or null
+     */
+    public URL getDiffUrl()
+    {
+        return diffUrl;
+    }
+
+    /**
+     * @return true to build only the cards changed since
+     *         {@link #getDiffUrl()}
+     */
+    public boolean isChangedOnly()
+    {
+        return changedOnly;
+    }
+
+    /**
+     * @return true to merge into the existing mse-set file
+     */
+    public boolean isMerge()
+    {
+        return merge;
+    }
+
+    /**
+     * @return the directory or base URL of the card artwork, or null
+     */
+    public String getArtSource()
+    {
+        return artSource;
+    }
+
+    /**
+     * @return how long to wait to connect to or read from a URL, in
+     *         milliseconds
+     */
+    public int getNetworkTimeout()
+    {
+        return networkTimeout;
+    }
+
+    /**
+     * @return how long to wait for MSE to answer a command, in milliseconds
+     */
+    public int getMseTimeout()
+    {
+        return mseTimeout;
+    }
+
+    /**
+     * @return the directory of the {@link ImageWorkspace} that card images
+     *         are exported to
+     */
+    public Path getImageDirectory()
+    {
+        return imageDirectory;
+    }
+
+    /**
+     * @return how many bytes of exported card images to keep between builds
+     */
+    public long getImageCacheSize()
+    {
+        return imageCacheSize;
+    }
+
+    /**
+     * @return the memory budget of scaling artwork, shared by every build
+     *         made with this config, or null for each build to have its
+     *         own of {@link MemoryBudget#ofHeap()}
+     */
+    public MemoryBudget getArtworkMemory()
+    {
+        return artworkMemory;
+    }
+
+    /**
+     * Collects the settings for a {@link BuildConfig}.
+     */
+    public static final class Builder
+    {
+        private URL inputUrl;
+        private Path mseSetFile;
+        private Path mseExe;
+        private String copyright;
+        private boolean debug;
+        private CardQuery filter;
+        private Path snapshot;
+        private URL diffUrl;
+        private boolean changedOnly;
+        private boolean merge;
+        private String artSource;
+        private int networkTimeout = DEFAULT_NETWORK_TIMEOUT;
+        private int mseTimeout = DEFAULT_MSE_TIMEOUT;
+        private Path imageDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "shadowfist-images");
+        private long imageCacheSize = DEFAULT_IMAGE_CACHE_SIZE;
+        private MemoryBudget artworkMemory;
+
+        private Builder()
+        {
+        }
+
+        public Builder inputUrl(URL inputUrl)
+        {
+            this.inputUrl = inputUrl;
+            return this;
+        }
+
+        public Builder mseSetFile(Path mseSetFile)
+        {
+            this.mseSetFile = mseSetFile;
+            return this;
+        }
+
+        public Builder mseExe(Path mseExe)
+        {
+            this.mseExe = mseExe;
+            return this;
+        }
+
+        public Builder copyright(String copyright)
+        {
+            this.copyright = copyright;
+            return this;
+        }
+
+        public Builder debug(boolean debug)
+        {
+            this.debug = debug;
+            return this;
+        }
+
+        public Builder filter(CardQuery filter)
+        {
+            this.filter = filter;
+            return this;
+        }
+
+        public Builder snapshot(Path snapshot)
+        {
+            this.snapshot = snapshot;
+            return this;
+        }
+
+        public Builder diffUrl(URL diffUrl)
+        {
+            this.diffUrl = diffUrl;
+            return this;
+        }
+
+        public Builder changedOnly(boolean changedOnly)
+        {
+            this.changedOnly = changedOnly;
+            return this;
+        }
+
+        public Builder merge(boolean merge)
+        {
+            this.merge = merge;
+            return this;
+        }
+
+        public Builder artSource(String artSource)
+        {
+            this.artSource = artSource;
+            return this;
+        }
+
+        public Builder networkTimeout(int networkTimeout)
+        {
+            this.networkTimeout = networkTimeout;
+            return this;
+        }
+
+        public Builder mseTimeout(int mseTimeout)
+        {
+            this.mseTimeout = mseTimeout;
+            return this;
+        }
+
+        public Builder imageDirectory(Path imageDirectory)
+        {
+            this.imageDirectory = imageDirectory;
+            return this;
+        }
+
+        public Builder imageCacheSize(long imageCacheSize)
+        {
+            this.imageCacheSize = imageCacheSize;
+            return this;
+        }
+
+        public Builder artworkMemory(MemoryBudget artworkMemory)
+        {
+            this.artworkMemory = artworkMemory;
+            return this;
+        }
+
+        /**
+         * @return the config
+         * @throws IllegalStateException if the settings don't make sense
+         *             together
+         */
+        public BuildConfig build()
+        {
+            if (mseSetFile == null)
+            {
+                throw new IllegalStateException("The output path is not valid or was not determined correctly.");
+            }
+            if (changedOnly && diffUrl == null)
+            {
+                throw new IllegalStateException("Building only the changed cards needs a previous version to compare with.");
+            }
+            if (networkTimeout <= 0 || mseTimeout <= 0)
+            {
+                throw new IllegalStateException("The timeouts must be more than 0.");
+            }
+            if (imageDirectory == null || imageCacheSize < 0)
+            {
+                throw new IllegalStateException("The image directory must be set and its cache size not negative.");
+            }
+            return new BuildConfig(this);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.temporal.TemporalAccessor;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The state of one run of a build: its {@link BuildConfig}, the time it
+ * started, formatted once so every card of the run is stamped the same, the
+ * artwork found for its cards, and the {@link BuildListener} and
+ * {@link BuildSink} it reports to. A context can't be changed, apart from
+ * being cancelled, so the stages of {@link Main} given one are safe to call
+ * from many threads. Every copy made of a context shares its cancellation,
+ * and every stage checks it often so a cancelled build stops soon.
+ *
+ * @author cgreene
+ */
+public final class BuildContext
+{
+    private final BuildConfig config;
+    private final String timestamp;
+    private final Map<String, Path> cardImages;
+    private final BuildListener listener;
+    private final BuildSink sink;
+    private final AtomicBoolean cancelled;
+
+    /**
+     * Create the context of a run starting now.
+     *
+     * @param config the settings of the build
+     */
+    public BuildContext(BuildConfig config)
+    {
+        this(config, LocalDateTime.now());
+    }
+
+    /**
+     * Create the context of a run starting at the given time.
+     *
+     * @param config the settings of the build
+     * @param started the start of the run, with a date and time of day
+     */
+    public BuildContext(BuildConfig config, TemporalAccessor started)
+    {
+        this(config, Main.DATE_FORMAT.format(started), Collections.<String, Path> emptyMap(), BuildListener.NONE,
+            BuildSink.NONE, new AtomicBoolean());
+    }
+
+    private BuildContext(BuildConfig config, String timestamp, Map<String, Path> cardImages, BuildListener listener,
+        BuildSink sink, AtomicBoolean cancelled)
+    {
+        this.config = config;
+        this.timestamp = timestamp;
+        this.cardImages = cardImages;
+        this.listener = listener;
+        this.sink = sink;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * @return the settings of the build
+     */
+    public BuildConfig getConfig()
+    {
+        return config;
+    }
+
+    /**
+     * @return the start of the run, formatted for the time fields of a card
+     */
+    public String getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return the scaled artwork of each card, by {@link CardDiff#key(String, String)}
+     */
+    public Map<String, Path> getCardImages()
+    {
+        return cardImages;
+    }
+
+    /**
+     * Return the name of the artwork entry for the card, or an empty string
+     * if it has none.
+     *
+     * @param title the card title
+     * @param subtitle the card subtitle
+     * @return the image entry name
+     */
+    public String getCardImage(String title, String subtitle)
+    {
+        Path image = cardImages.get(CardDiff.key(title, subtitle));
+        return (image == null)? "" : image.getFileName().toString();
+    }
+
+    /**
+     * @return what to tell about the progress of the build
+     */
+    public BuildListener getListener()
+    {
+        return listener;
+    }
+
+    /**
+     * @return what to give the output of the build to
+     */
+    public BuildSink getSink()
+    {
+        return sink;
+    }
+
+    /**
+     * Ask the build to stop. Stages already running stop at their next
+     * {@link #checkCancelled()}.
+     */
+    public void cancel()
+    {
+        cancelled.set(true);
+    }
+
+    /**
+     * @return true if the build was cancelled
+     */
+    public boolean isCancelled()
+    {
+        return cancelled.get();
+    }
+
+    /**
+     * Stop the build if it was cancelled or the thread running it was
+     * interrupted.
+     *
+     * @throws CancellationException if the build should stop
+     */
+    public void checkCancelled()
+    {
+        if (cancelled.get() || Thread.currentThread().isInterrupted())
+        {
+            cancelled.set(true);
+            throw new CancellationException("The build was cancelled.");
+        }
+    }
+
+    /**
+     * Return a copy of this context with the artwork of the cards.
+     *
+     * @param images the scaled artwork of each card, by {@link CardDiff#key(String, String)}
+     * @return the new context
+     */
+    public BuildContext withCardImages(Map<String, Path> images)
+    {
+        return new BuildContext(config, timestamp, Collections.unmodifiableMap(new HashMap<>(images)), listener,
+            sink, cancelled);
+    }
+
+    /**
+     * Return a copy of this context reporting to the listener.
+     *
+     * @param listener what to tell about the progress of the build
+     * @return the new context
+     */
+    public BuildContext withListener(BuildListener listener)
+    {
+        return new BuildContext(config, timestamp, cardImages, listener, sink, cancelled);
+    }
+
+    /**
+     * Return a copy of this context giving its output to the sink.
+     *
+     * @param sink what to give the output of the build to
+     * @return the new context
+     */
+    public BuildContext withSink(BuildSink sink)
+    {
+        return new BuildContext(config, timestamp, cardImages, listener, sink, cancelled);
+    }
+}
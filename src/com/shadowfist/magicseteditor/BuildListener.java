@@ -0,0 +1,52 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+/**
+ * Told what a build is doing, in place of printing it. The command line
+ * prints the messages and a dot for each step of progress; a service can
+ * log them or report them to its callers. A listener may be called from
+ * several threads at once, so its methods must be thread-safe.
+ *
+ * @author cgreene
+ */
+public interface BuildListener
+{
+    /**
+     * The stages of a build that report progress.
+     */
+    enum Stage
+    {
+        ARTWORK, TRANSFORM, MERGE, EXPORT, COLLATE
+    }
+
+    /**
+     * A listener that ignores everything.
+     */
+    BuildListener NONE = new BuildListener()
+    {
+    };
+
+    /**
+     * Called with something a person following the build would want to
+     * read, like the files read and written and the problems found.
+     *
+     * @param message the message
+     */
+    default void message(String message)
+    {
+    }
+
+    /**
+     * Called when one more step of a stage is done, like a card
+     * transformed or an image exported.
+     *
+     * @param stage the stage
+     * @param done the number of steps done so far
+     * @param total the number of steps of the stage
+     */
+    default void progress(Stage stage, int done, int total)
+    {
+    }
+}
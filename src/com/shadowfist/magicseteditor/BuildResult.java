@@ -0,0 +1,70 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.nio.file.Path;
+
+/**
+ * The files a {@link SetBuilder} made.
+ *
+ * @author cgreene
+ */
+public final class BuildResult
+{
+    private final Path mseSetFile;
+    private final Path pdfFile;
+    private final Path changelogFile;
+    private final int cards;
+
+    public BuildResult(Path mseSetFile, Path pdfFile, Path changelogFile, int cards)
+    {
+        this.mseSetFile = mseSetFile;
+        this.pdfFile = pdfFile;
+        this.changelogFile = changelogFile;
+        this.cards = cards;
+    }
+
+    /**
+     * @return the mse-set file, or null if a changelog was made without a
+     *         set
+     */
+    public Path getMseSetFile()
+    {
+        return mseSetFile;
+    }
+
+    /**
+     * @return the PDF file, or null if MSE wasn't available to export the
+     *         card images
+     */
+    public Path getPdfFile()
+    {
+        return pdfFile;
+    }
+
+    /**
+     * @return the changelog file, or null if the build didn't compare
+     *         versions
+     */
+    public Path getChangelogFile()
+    {
+        return changelogFile;
+    }
+
+    /**
+     * @return the number of cards built, or changed if versions were
+     *         compared
+     */
+    public int getCards()
+    {
+        return cards;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BuildResult[set=" + mseSetFile + ", pdf=" + pdfFile + ", changelog=" + changelogFile + ", cards="
+            + cards + "]";
+    }
+}
@@ -0,0 +1,661 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP service that builds sets for designers, so they don't need
+ * to run the jar. A build is requested with
+ * <pre>
+ * POST /build              with the CSV file as the body
+ * GET  /build?url=...      to download the CSV file from a URL
+ * </pre>
+ * and the optional parameters <code>where=</code>, a {@link CardQuery}
+ * filter, and <code>format=mse-set</code> to get the mse-set file instead of
+ * the PDF. The PDF is only made if MSE is available; otherwise the mse-set
+ * file is returned.
+ * <p>
+ * Only <code>http</code> and <code>https</code> URLs on the allowed hosts
+ * are downloaded, so callers can't make the service read its own files or
+ * reach other services on its network. The host of the template's input URL
+ * is allowed; others are added with {@link #allowUrlHost(String)}.
+ * Redirects are followed only to allowed hosts.
+ * <p>
+ * Builds are keyed by a hash of the CSV contents and the parameters. The
+ * files of finished builds are kept, so asking again for the same cards
+ * returns them straight away, and a request for cards that are already
+ * being built waits for that build instead of starting another. The files
+ * of failed and evicted builds are deleted once no response is reading
+ * them. Builds run on a fixed number of threads with a bounded queue; when
+ * the queue is full the service answers 503 so callers can retry. All
+ * builds share one {@link MemoryBudget} for scaling artwork, so a burst of
+ * builds stays within the memory of one.
+ *
+ * @author cgreene
+ */
+public class BuildServer
+{
+    /** The largest CSV file accepted, in bytes. */
+    public static final int MAX_CSV_SIZE = 16 * 1024 * 1024;
+    public static final String HEADER_CACHE = "X-Build-Cache";
+    /** The path builds are requested at. */
+    public static final String PATH = "/build";
+    /** How long {@link #stop()} waits for builds to stop, in seconds. */
+    private static final int STOP_TIMEOUT = 10;
+    /** The most redirects followed when downloading a url=. */
+    private static final int MAX_REDIRECTS = 5;
+
+    private final BuildConfig template;
+    private final Path workDirectory;
+    private final int maxCached;
+    private final HttpServer server;
+    private final ThreadPoolExecutor builds;
+    private final ExecutorService requests;
+    /** Builds in progress and finished, by key. Guards the jobs' counts. */
+    private final Map<String, Job> jobs = new HashMap<>();
+    /** Finished builds, oldest first. */
+    private final Deque<Job> finished = new ArrayDeque<>();
+    private final AtomicLong jobNumber = new AtomicLong();
+    /** The hosts url= may download from, in lower case. */
+    private final Set<String> urlHosts = ConcurrentHashMap.newKeySet();
+    private volatile BuildListener listener = BuildListener.NONE;
+    private volatile boolean stopped;
+
+    /**
+     * A build and its files. The files are deleted once the build is
+     * forgotten, because it failed or was evicted, and no response is
+     * still reading them.
+     */
+    protected static class Job
+    {
+        final String key;
+        final Path directory;
+        final CompletableFuture<BuildResult> result = new CompletableFuture<>();
+        /** Responses that will read the files. */
+        int readers;
+        boolean forgotten;
+
+        Job(String key, Path directory)
+        {
+            this.key = key;
+            this.directory = directory;
+        }
+
+        /**
+         * @return the build, once it is done
+         */
+        public CompletableFuture<BuildResult> getResult()
+        {
+            return result;
+        }
+
+        /**
+         * @return the validation report of the cards
+         */
+        public Path getReport()
+        {
+            return directory.resolve("cards.validation.json");
+        }
+    }
+
+    /**
+     * Create a service. Nothing is served until {@link #start()}.
+     *
+     * @param address the address to listen on; port 0 picks a free port
+     * @param template the settings every build starts from, like the
+     *            copyright and MSE executable
+     * @param workDirectory where to keep the files of each build
+     * @param threads the number of builds to run at once
+     * @param queueSize the number of builds that may wait to run
+     * @param maxCached the number of finished builds to keep
+     * @throws IOException if the address can't be used
+     */
+    public BuildServer(InetSocketAddress address, BuildConfig template, Path workDirectory, int threads,
+        int queueSize, int maxCached) throws IOException
+    {
+        this.template = (template.getArtworkMemory() != null)? template
+            : template.toBuilder().artworkMemory(MemoryBudget.ofHeap()).build();
+        this.workDirectory = workDirectory;
+        this.maxCached = maxCached;
+        this.builds = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize));
+        this.requests = Executors.newFixedThreadPool(Math.max(4, threads));
+        this.server = HttpServer.create(address, 0);
+        this.server.setExecutor(requests);
+        this.server.createContext(PATH, new BuildHandler());
+        URL inputUrl = template.getInputUrl();
+        if (inputUrl != null && isHttp(inputUrl))
+        {
+            allowUrlHost(inputUrl.getHost());
+        }
+    }
+
+    /**
+     * Allow <code>url=</code> to download from the host and its subdomains.
+     *
+     * @param host the host name, e.g. docs.google.com
+     * @return this service
+     */
+    public BuildServer allowUrlHost(String host)
+    {
+        urlHosts.add(host.toLowerCase(Locale.ROOT));
+        return this;
+    }
+
+    /**
+     * @param hosts the host names to allow
+     * @return this service
+     * @see #allowUrlHost(String)
+     */
+    public BuildServer allowUrlHosts(Collection<String> hosts)
+    {
+        for (String host : hosts)
+        {
+            allowUrlHost(host);
+        }
+        return this;
+    }
+
+    /**
+     * @param listener told about problems answering requests and cleaning
+     *            up builds
+     * @return this service
+     */
+    public BuildServer listener(BuildListener listener)
+    {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Start answering requests.
+     *
+     * @throws IOException if the work directory can't be made
+     */
+    public void start() throws IOException
+    {
+        Files.createDirectories(workDirectory);
+        server.start();
+    }
+
+    /**
+     * Stop answering requests and stop any builds, waiting a moment for
+     * them to stop.
+     */
+    public void stop()
+    {
+        stopped = true;
+        server.stop(0);
+        builds.shutdownNow();
+        requests.shutdownNow();
+        try
+        {
+            builds.awaitTermination(STOP_TIMEOUT, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the address being listened on
+     */
+    public InetSocketAddress getAddress()
+    {
+        return server.getAddress();
+    }
+
+    /**
+     * Return the build of the CSV file with the parameters, joining a build
+     * of the same already in progress or finished. The caller must
+     * {@link #release(Job)} the job once it has read its files.
+     *
+     * @param csv the CSV file contents
+     * @param where the filter, or null for every card
+     * @param status set to how the build was found: "hit", "joined" or
+     *            "miss"
+     * @return the build
+     * @throws IllegalArgumentException if the filter can't be parsed
+     */
+    protected Job submit(byte[] csv, String where, String[] status)
+    {
+        CardQuery filter = (where != null)? CardQuery.parse(where) : null;
+        String key = key(csv, where);
+        Job job;
+        synchronized (jobs)
+        {
+            job = jobs.get(key);
+            if (job != null)
+            {
+                status[0] = job.result.isDone()? "hit" : "joined";
+                job.readers++;
+                return job;
+            }
+            // each try of a key gets its own directory, so a failed one can
+            // be deleted while the key is built again
+            job = new Job(key, workDirectory.resolve(key + "-" + jobNumber.incrementAndGet()));
+            job.readers++;
+            jobs.put(key, job);
+        }
+        status[0] = "miss";
+
+        final Job started = job;
+        try
+        {
+            Files.createDirectories(job.directory);
+            Path csvFile = job.directory.resolve("cards.csv");
+            Files.write(csvFile, csv);
+            BuildConfig config = template.toBuilder().inputUrl(csvFile.toUri().toURL())
+                .mseSetFile(job.directory.resolve("cards.mse-set")).filter(filter).snapshot(null)
+                .diffUrl(null).changedOnly(false).merge(false).build();
+            new SetBuilder(config).executor(builds).buildAsync().whenComplete(new BiConsumer<BuildResult, Throwable>()
+            {
+                @Override
+                public void accept(BuildResult built, Throwable failure)
+                {
+                    finished(started, failure == null);
+                    if (failure == null)
+                    {
+                        started.result.complete(built);
+                    }
+                    else
+                    {
+                        started.result.completeExceptionally(failure);
+                    }
+                }
+            });
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // answer any request that joined, then forget it
+            finished(job, false);
+            job.result.completeExceptionally(e);
+        }
+        return job;
+    }
+
+    /**
+     * Keep a finished build, evicting the oldest if there are too many. A
+     * failed build is forgotten so it can be tried again; its files are
+     * deleted once the requests waiting for it have been answered.
+     */
+    private void finished(Job job, boolean succeeded)
+    {
+        List<Job> delete = new ArrayList<>();
+        synchronized (jobs)
+        {
+            if (!succeeded)
+            {
+                forget(job, delete);
+            }
+            else
+            {
+                finished.add(job);
+                while (finished.size() > maxCached)
+                {
+                    forget(finished.poll(), delete);
+                }
+            }
+        }
+        for (Job forgotten : delete)
+        {
+            deleteJob(forgotten);
+        }
+    }
+
+    /**
+     * Say a response has finished reading the files of the job, deleting
+     * them if it was the last and the job is forgotten.
+     *
+     * @param job the job from {@link #submit(byte[], String, String[])}
+     */
+    protected void release(Job job)
+    {
+        boolean delete;
+        synchronized (jobs)
+        {
+            job.readers--;
+            delete = job.forgotten && job.readers == 0;
+        }
+        if (delete)
+        {
+            deleteJob(job);
+        }
+    }
+
+    /** Called holding the lock of jobs. */
+    private void forget(Job job, List<Job> delete)
+    {
+        if (jobs.get(job.key) == job)
+        {
+            jobs.remove(job.key);
+        }
+        job.forgotten = true;
+        if (job.readers == 0)
+        {
+            delete.add(job);
+        }
+    }
+
+    private void deleteJob(Job job)
+    {
+        try
+        {
+            Main.deleteDirectory(job.directory);
+        }
+        catch (IOException e)
+        {
+            listener.message("Could not delete build " + job.directory + ": " + e);
+        }
+    }
+
+    /**
+     * Return the hex SHA-256 hash of the CSV contents and the filter.
+     */
+    protected static String key(byte[] csv, String where)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(csv);
+            if (where != null)
+            {
+                digest.update((byte) 0);
+                digest.update(where.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest())
+            {
+                hex.append(String.format("%02x", b & 0xFF));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isHttp(URL url)
+    {
+        return "http".equalsIgnoreCase(url.getProtocol()) || "https".equalsIgnoreCase(url.getProtocol());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the URL isn't http or https on an
+     *             allowed host
+     */
+    private void checkAllowed(URL url)
+    {
+        if (!isHttp(url))
+        {
+            throw new IllegalArgumentException("Only http and https URLs can be built, not " + url.getProtocol() + ".");
+        }
+        String host = url.getHost().toLowerCase(Locale.ROOT);
+        for (String allowed : urlHosts)
+        {
+            if (host.equals(allowed) || host.endsWith("." + allowed))
+            {
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Builds can't be downloaded from " + host + ".");
+    }
+
+    /**
+     * Open the CSV file at a url= parameter, checking it and every redirect
+     * against the allowed hosts.
+     *
+     * @param spec the URL
+     * @return the stream of the file
+     * @throws IllegalArgumentException if the URL or a redirect isn't allowed
+     * @throws IOException if the download fails
+     */
+    protected InputStream openUrl(String spec) throws IOException
+    {
+        URL url = new URL(spec);
+        for (int redirects = 0; ; redirects++)
+        {
+            checkAllowed(url);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(template.getNetworkTimeout());
+            connection.setReadTimeout(template.getNetworkTimeout());
+            int code = connection.getResponseCode();
+            String location = connection.getHeaderField("Location");
+            if (code >= 300 && code < 400 && location != null)
+            {
+                connection.disconnect();
+                if (redirects == MAX_REDIRECTS)
+                {
+                    throw new IOException("Too many redirects downloading " + spec);
+                }
+                url = new URL(url, location);
+                continue;
+            }
+            if (code != HttpURLConnection.HTTP_OK)
+            {
+                connection.disconnect();
+                throw new IOException(url.getHost() + " answered " + code + " to the download.");
+            }
+            return connection.getInputStream();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException
+    {
+        Map<String, String> parameters = new HashMap<>();
+        if (query != null)
+        {
+            for (String pair : query.split("&"))
+            {
+                int equals = pair.indexOf('=');
+                if (equals > 0)
+                {
+                    parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0)
+        {
+            if (bytes.size() + read > MAX_CSV_SIZE)
+            {
+                throw new IllegalArgumentException("The CSV file is larger than " + MAX_CSV_SIZE + " bytes.");
+            }
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException
+    {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(body);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, Path file) throws IOException
+    {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, Files.size(file));
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            Files.copy(file, out);
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException
+    {
+        send(exchange, status, "text/plain; charset=utf-8", (text + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send the file the caller asked for, or the problem with the build.
+     */
+    private static void sendResult(HttpExchange exchange, boolean wantPdf, BuildResult result, Throwable failure,
+        Path report) throws IOException
+    {
+        if (failure instanceof CompletionException && failure.getCause() != null)
+        {
+            failure = failure.getCause();
+        }
+        if (failure instanceof RejectedExecutionException)
+        {
+            exchange.getResponseHeaders().set("Retry-After", "10");
+            sendText(exchange, 503, "Too many builds are waiting, try again soon.");
+            return;
+        }
+        if (failure instanceof IllegalArgumentException)
+        {
+            sendText(exchange, 400, failure.getMessage());
+            return;
+        }
+        if (failure instanceof IllegalStateException && Files.exists(report))
+        {
+            // the cards aren't valid
+            send(exchange, 422, "application/json; charset=utf-8", report);
+            return;
+        }
+        if (failure != null)
+        {
+            sendText(exchange, 500, "The build failed: " + failure);
+            return;
+        }
+        Path file = (wantPdf && result.getPdfFile() != null)? result.getPdfFile() : result.getMseSetFile();
+        boolean pdf = file.equals(result.getPdfFile());
+        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + file.getFileName() + "\"");
+        send(exchange, 200, pdf? "application/pdf" : "application/zip", file);
+    }
+
+    /**
+     * Reads the request, submits the build and answers once it is done,
+     * without holding a request thread while it runs. The answer is sent
+     * from a request thread, so slow callers never hold up the builds.
+     */
+    private class BuildHandler implements HttpHandler
+    {
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException
+        {
+            if (!PATH.equals(exchange.getRequestURI().getPath()))
+            {
+                sendText(exchange, 404, "Builds are at " + PATH + ".");
+                return;
+            }
+            try
+            {
+                Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+                byte[] csv;
+                if (parameters.containsKey("url"))
+                {
+                    try (InputStream in = openUrl(parameters.get("url")))
+                    {
+                        csv = readAll(in);
+                    }
+                }
+                else if ("POST".equals(exchange.getRequestMethod()))
+                {
+                    try (InputStream in = exchange.getRequestBody())
+                    {
+                        csv = readAll(in);
+                    }
+                }
+                else
+                {
+                    sendText(exchange, 400, "POST a CSV file or give its url= to build.");
+                    return;
+                }
+
+                String[] status = new String[1];
+                final Job job = submit(csv, parameters.get("where"), status);
+                exchange.getResponseHeaders().set(HEADER_CACHE, status[0]);
+                final boolean wantPdf = !"mse-set".equals(parameters.get("format"));
+                job.result.whenCompleteAsync(new BiConsumer<BuildResult, Throwable>()
+                {
+                    @Override
+                    public void accept(BuildResult built, Throwable failure)
+                    {
+                        try
+                        {
+                            if (!stopped)
+                            {
+                                sendResult(exchange, wantPdf, built, failure, job.getReport());
+                            }
+                        }
+                        catch (IOException e)
+                        {
+                            listener.message("Could not answer " + exchange.getRequestURI() + ": " + e);
+                        }
+                        finally
+                        {
+                            release(job);
+                            exchange.close();
+                        }
+                    }
+                }, requests);
+            }
+            catch (IllegalArgumentException | MalformedURLException e)
+            {
+                sendText(exchange, 400, e.getMessage());
+            }
+            catch (IOException | UncheckedIOException e)
+            {
+                sendText(exchange, 500, "The build could not start: " + e);
+            }
+        }
+    }
+}
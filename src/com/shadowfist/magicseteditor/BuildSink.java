@@ -0,0 +1,59 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Given the output of a build as soon as each part is made, so a caller
+ * can stream it on instead of waiting for the mse-set and PDF files. The
+ * files are still written. Files passed to a sink may be deleted once the
+ * build is done, so copy any that are needed later.
+ *
+ * @author cgreene
+ */
+public interface BuildSink
+{
+    /**
+     * A sink that ignores everything.
+     */
+    BuildSink NONE = new BuildSink()
+    {
+    };
+
+    /**
+     * Called with the set entry of the mse-set file before it is written.
+     *
+     * @param setText the set text
+     * @throws IOException to stop the build
+     */
+    default void setText(String setText) throws IOException
+    {
+    }
+
+    /**
+     * Called with each card image MSE exports.
+     *
+     * @param index the position of the card in the set, from 0
+     * @param title the title of the card
+     * @param image the JPG file of the card
+     * @throws IOException to stop the build
+     */
+    default void cardImage(int index, String title, Path image) throws IOException
+    {
+    }
+
+    /**
+     * Called when a page of the PDF file is laid out.
+     *
+     * @param number the page number, from 1
+     * @param cardImages the images of the cards on the page, in order
+     * @throws IOException to stop the build
+     */
+    default void pdfPage(int number, List<Path> cardImages) throws IOException
+    {
+    }
+}
@@ -44,12 +44,19 @@ public class CSVUtils
 
         char[] chars = cvsLine.toCharArray();
 
-        for (char ch : chars)
+        for (int i = 0; i < chars.length; i++)
         {
+            char ch = chars[i];
 
             if (inQuotes)
             {
-                if (ch == customQuote)
+                if (ch == customQuote && i + 1 < chars.length && chars[i + 1] == customQuote)
+                {
+                    // an escaped quote, as spreadsheets write "" for "
+                    curVal.append(ch);
+                    i++;
+                }
+                else if (ch == customQuote)
                 {
                     inQuotes = false;
                     doubleQuotesInColumn = false;
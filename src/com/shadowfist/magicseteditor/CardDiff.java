@@ -0,0 +1,235 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Works out which cards changed between two versions of a set, e.g. two
+ * playtest rounds. Cards are matched by title and subtitle with a hash join:
+ * the old cards are put in a hash table and the new cards are streamed past
+ * it, so each card is looked at once no matter how large the sets are.
+ * <p>
+ * Only the fields that come from the spreadsheet are compared, so a new
+ * copyright line or time stamp doesn't mark every card as changed.
+ *
+ * @author cgreene
+ */
+public class CardDiff
+{
+    /**
+     * The MSE card fields compared between versions.
+     */
+    public static final List<String> COMPARED_FIELDS = Arrays.asList("title", "subtitle", "attributes", "cost",
+        "resources", "fighting", "power", "body", "rules", "artist");
+
+    public enum Kind
+    {
+        ADDED, REMOVED, CHANGED
+    }
+
+    /**
+     * A card that was added, removed or changed.
+     */
+    public static class Change
+    {
+        private final Kind kind;
+        private final Map<String, String> card;
+        private final Map<String, String[]> fields;
+
+        Change(Kind kind, Map<String, String> card, Map<String, String[]> fields)
+        {
+            this.kind = kind;
+            this.card = card;
+            this.fields = fields;
+        }
+
+        /**
+         * @return whether the card was added, removed or changed
+         */
+        public Kind getKind()
+        {
+            return kind;
+        }
+
+        /**
+         * @return the new version of the card, or the old one if it was removed
+         */
+        public Map<String, String> getCard()
+        {
+            return card;
+        }
+
+        /**
+         * @return the changed field names mapped to their old and new values,
+         *         empty unless the card was changed
+         */
+        public Map<String, String[]> getFields()
+        {
+            return fields;
+        }
+    }
+
+    /**
+     * Compare two versions of a set. The old cards are read once into a
+     * hash table keyed by title and subtitle and the new cards are streamed
+     * against it. Changed and added cards are returned in new set order,
+     * followed by removed cards in old set order.
+     *
+     * @param oldCards the fields of the cards in the old version
+     * @param newCards the fields of the cards in the new version
+     * @return the differences, empty if the versions have the same cards
+     */
+    public static List<Change> compare(Iterable<Map<String, String>> oldCards, Iterable<Map<String, String>> newCards)
+    {
+        // build side; a title and subtitle can appear more than once so keep them in order
+        Map<String, ArrayDeque<Map<String, String>>> unmatched = new LinkedHashMap<>();
+        for (Map<String, String> card : oldCards)
+        {
+            String key = key(card);
+            ArrayDeque<Map<String, String>> cards = unmatched.get(key);
+            if (cards == null)
+            {
+                cards = new ArrayDeque<>(2);
+                unmatched.put(key, cards);
+            }
+            cards.add(card);
+        }
+
+        // probe side
+        List<Change> changes = new ArrayList<>();
+        for (Map<String, String> card : newCards)
+        {
+            String key = key(card);
+            ArrayDeque<Map<String, String>> cards = unmatched.get(key);
+            if (cards == null)
+            {
+                changes.add(new Change(Kind.ADDED, card, Collections.<String, String[]>emptyMap()));
+                continue;
+            }
+            Map<String, String> oldCard = cards.poll();
+            if (cards.isEmpty())
+            {
+                unmatched.remove(key);
+            }
+            Map<String, String[]> fields = compareFields(oldCard, card);
+            if (!fields.isEmpty())
+            {
+                changes.add(new Change(Kind.CHANGED, card, fields));
+            }
+        }
+
+        for (ArrayDeque<Map<String, String>> cards : unmatched.values())
+        {
+            for (Map<String, String> card : cards)
+            {
+                changes.add(new Change(Kind.REMOVED, card, Collections.<String, String[]>emptyMap()));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Write a readable changelog like
+     * <pre>
+     * ~ Gambling House
+     *     rules: "Guts." -&gt; "Guts. Superleap."
+     * + Pagoda (Fortress)
+     * - Golden Comeback
+     * </pre>
+     *
+     * @param changes the differences found by {@link #compare(Iterable, Iterable)}
+     * @param out where to write the changelog
+     * @throws IOException if writing fails
+     */
+    public static void writeChangelog(List<Change> changes, Appendable out) throws IOException
+    {
+        int added = 0, removed = 0, changed = 0;
+        for (Change change : changes)
+        {
+            switch (change.getKind())
+            {
+                case ADDED:
+                    added++;
+                    out.append("+ ");
+                    break;
+                case REMOVED:
+                    removed++;
+                    out.append("- ");
+                    break;
+                default:
+                    changed++;
+                    out.append("~ ");
+            }
+            out.append(value(change.getCard(), "title"));
+            String subtitle = value(change.getCard(), "subtitle");
+            if (!subtitle.isEmpty())
+            {
+                out.append(" (").append(subtitle).append(")");
+            }
+            out.append("\n");
+            for (Map.Entry<String, String[]> field : change.getFields().entrySet())
+            {
+                out.append("    ").append(field.getKey()).append(": \"").append(field.getValue()[0])
+                    .append("\" -> \"").append(field.getValue()[1]).append("\"\n");
+            }
+        }
+        out.append(changed + " changed, " + added + " added, " + removed + " removed.\n");
+    }
+
+    /**
+     * Return the key cards are matched by: the title and subtitle.
+     *
+     * @param card the card fields
+     * @return the match key
+     */
+    public static String key(Map<String, String> card)
+    {
+        return key(card.get("title"), card.get("subtitle"));
+    }
+
+    /**
+     * Return the key cards are matched by from their title and subtitle.
+     *
+     * @param title the card title, or null
+     * @param subtitle the card subtitle, or null
+     * @return the match key
+     */
+    public static String key(String title, String subtitle)
+    {
+        return ((title == null)? "" : title.trim()) + '\u0000' + ((subtitle == null)? "" : subtitle.trim());
+    }
+
+    private static Map<String, String[]> compareFields(Map<String, String> oldCard, Map<String, String> newCard)
+    {
+        Map<String, String[]> fields = Collections.emptyMap();
+        for (String field : COMPARED_FIELDS)
+        {
+            String oldValue = value(oldCard, field);
+            String newValue = value(newCard, field);
+            if (!oldValue.equals(newValue))
+            {
+                if (fields.isEmpty())
+                {
+                    fields = new LinkedHashMap<>();
+                }
+                fields.put(field, new String[] { oldValue, newValue });
+            }
+        }
+        return fields;
+    }
+
+    private static String value(Map<String, String> card, String field)
+    {
+        String value = card.get(field);
+        return (value == null)? "" : value.trim();
+    }
+}
@@ -0,0 +1,148 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * Secondary indexes over a list of parsed card records. Each index maps a
+ * lower-cased value to the set of record positions that have it, so a
+ * {@link CardQuery} can be answered with a handful of {@link BitSet}
+ * operations instead of scanning every card.
+ * <p>
+ * The indexed fields are
+ * <pre>
+ * faction  - the Faction column
+ * type     - the CardType column
+ * designer - the Designer column
+ * keyword  - every keyword found in the Text column by {@link Main#PATTERN_BFA}
+ * </pre>
+ *
+ * @author cgreene
+ */
+public class CardIndex
+{
+    public static final String FIELD_FACTION = "faction";
+    public static final String FIELD_TYPE = "type";
+    public static final String FIELD_DESIGNER = "designer";
+    public static final String FIELD_KEYWORD = "keyword";
+
+    private final int size;
+    private final Map<String, Map<String, BitSet>> indexes = new HashMap<>();
+
+    /**
+     * Build the indexes for the specified records. The position of a record
+     * in the list is the bit used for it in every index.
+     *
+     * @param records the parsed card records, as returned by
+     *            {@link CSVUtils#parseLine(String)}
+     */
+    public CardIndex(List<List<String>> records)
+    {
+        size = records.size();
+        Map<String, BitSet> factions = new HashMap<>();
+        Map<String, BitSet> types = new HashMap<>();
+        Map<String, BitSet> designers = new HashMap<>();
+        Map<String, BitSet> keywords = new HashMap<>();
+        indexes.put(FIELD_FACTION, factions);
+        indexes.put(FIELD_TYPE, types);
+        indexes.put(FIELD_DESIGNER, designers);
+        indexes.put(FIELD_KEYWORD, keywords);
+
+        for (int i = 0; i < size; i++)
+        {
+            List<String> values = records.get(i);
+            add(factions, column(values, Main.COL_FACTION), i);
+            add(types, column(values, Main.COL_TYPE), i);
+            add(designers, column(values, Main.COL_DESIGNER), i);
+
+            Matcher matcher = Main.PATTERN_BFA.matcher(column(values, Main.COL_RULES));
+            while (matcher.find())
+            {
+                add(keywords, matcher.group(1), i);
+            }
+        }
+    }
+
+    /**
+     * Return true if the specified field name has an index.
+     *
+     * @param field the field name, e.g. {@link #FIELD_FACTION}
+     * @return true if the field can be queried
+     */
+    public static boolean isIndexed(String field)
+    {
+        return FIELD_FACTION.equals(field) || FIELD_TYPE.equals(field) || FIELD_DESIGNER.equals(field)
+            || FIELD_KEYWORD.equals(field);
+    }
+
+    /**
+     * Return the positions of all records whose field matches the value,
+     * ignoring case. The returned set is a copy and may be modified.
+     *
+     * @param field the field name, e.g. {@link #FIELD_FACTION}
+     * @param value the value to look up
+     * @return the matching record positions, never null
+     */
+    public BitSet lookup(String field, String value)
+    {
+        Map<String, BitSet> index = indexes.get(field);
+        if (index == null)
+        {
+            throw new IllegalArgumentException("The field \"" + field + "\" is not indexed.");
+        }
+        BitSet bits = index.get(normalize(value));
+        return (bits == null)? new BitSet(size) : (BitSet) bits.clone();
+    }
+
+    /**
+     * Return the positions of every record in the index.
+     *
+     * @return a new set with a bit for every record
+     */
+    public BitSet all()
+    {
+        BitSet bits = new BitSet(size);
+        bits.set(0, size);
+        return bits;
+    }
+
+    /**
+     * @return the number of records indexed
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    private static void add(Map<String, BitSet> index, String value, int position)
+    {
+        if (value.isEmpty())
+        {
+            return;
+        }
+        BitSet bits = index.get(normalize(value));
+        if (bits == null)
+        {
+            bits = new BitSet();
+            index.put(normalize(value), bits);
+        }
+        bits.set(position);
+    }
+
+    private static String column(List<String> values, int column)
+    {
+        return (column < values.size())? values.get(column) : "";
+    }
+
+    private static String normalize(String value)
+    {
+        return value.trim().toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,307 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A filter expression used to select a subset of cards, evaluated against a
+ * {@link CardIndex}. Expressions look like
+ * <pre>
+ * faction=Lotus and type=Character
+ * designer=cgreene or keyword=Superleap
+ * type="Feng Shui Site" and not (faction=Dragons or faction=Hand)
+ * faction!=Monarchs
+ * </pre>
+ * Field names are those of {@link CardIndex}, values are compared ignoring
+ * case and must be quoted if they contain spaces. <code>not</code> binds
+ * tighter than <code>and</code>, which binds tighter than <code>or</code>.
+ *
+ * @author cgreene
+ */
+public abstract class CardQuery
+{
+    /**
+     * Return the positions of the records in the index matched by this query.
+     *
+     * @param index the index to evaluate against
+     * @return the matching positions
+     */
+    public abstract BitSet evaluate(CardIndex index);
+
+    /**
+     * Parse a filter expression.
+     *
+     * @param expression the expression, e.g. <code>faction=Lotus and type=Character</code>
+     * @return the parsed query
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public static CardQuery parse(String expression)
+    {
+        Parser parser = new Parser(tokenize(expression));
+        CardQuery query = parser.parseOr();
+        if (parser.position < parser.tokens.size())
+        {
+            throw new IllegalArgumentException("Unexpected \"" + parser.tokens.get(parser.position)
+                + "\" in filter expression: " + expression);
+        }
+        return query;
+    }
+
+    /**
+     * Split the expression into words, quoted values and the symbols
+     * <code>( ) = !=</code>.
+     */
+    private static List<String> tokenize(String expression)
+    {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < expression.length())
+        {
+            char ch = expression.charAt(i);
+            if (Character.isWhitespace(ch))
+            {
+                i++;
+            }
+            else if (ch == '(' || ch == ')' || ch == '=')
+            {
+                tokens.add(String.valueOf(ch));
+                i++;
+            }
+            else if (ch == '!' && i + 1 < expression.length() && expression.charAt(i + 1) == '=')
+            {
+                tokens.add("!=");
+                i += 2;
+            }
+            else if (ch == '"' || ch == '\'')
+            {
+                int end = expression.indexOf(ch, i + 1);
+                if (end < 0)
+                {
+                    throw new IllegalArgumentException("Unterminated quote in filter expression: " + expression);
+                }
+                // keep the leading quote so a quoted "and" isn't taken as an operator
+                tokens.add(expression.substring(i, end));
+                i = end + 1;
+            }
+            else
+            {
+                int start = i;
+                while (i < expression.length() && !Character.isWhitespace(expression.charAt(i))
+                    && "()=!\"'".indexOf(expression.charAt(i)) < 0)
+                {
+                    i++;
+                }
+                if (start == i)
+                {
+                    throw new IllegalArgumentException("Unexpected '" + ch + "' in filter expression: " + expression);
+                }
+                tokens.add(expression.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Recursive descent parser over the tokens of an expression.
+     */
+    private static class Parser
+    {
+        private final List<String> tokens;
+        private int position;
+
+        Parser(List<String> tokens)
+        {
+            this.tokens = tokens;
+        }
+
+        CardQuery parseOr()
+        {
+            CardQuery left = parseAnd();
+            while (accept("or"))
+            {
+                left = new Or(left, parseAnd());
+            }
+            return left;
+        }
+
+        CardQuery parseAnd()
+        {
+            CardQuery left = parseNot();
+            while (accept("and"))
+            {
+                left = new And(left, parseNot());
+            }
+            return left;
+        }
+
+        CardQuery parseNot()
+        {
+            if (accept("not"))
+            {
+                return new Not(parseNot());
+            }
+            if (accept("("))
+            {
+                CardQuery query = parseOr();
+                if (!accept(")"))
+                {
+                    throw new IllegalArgumentException("Missing \")\" in filter expression.");
+                }
+                return query;
+            }
+            return parseTerm();
+        }
+
+        CardQuery parseTerm()
+        {
+            String field = next().toLowerCase(Locale.ENGLISH);
+            if (!CardIndex.isIndexed(field))
+            {
+                throw new IllegalArgumentException("Unknown field \"" + field
+                    + "\" in filter expression. Use faction, type, designer or keyword.");
+            }
+            boolean negate;
+            if (accept("="))
+            {
+                negate = false;
+            }
+            else if (accept("!="))
+            {
+                negate = true;
+            }
+            else
+            {
+                throw new IllegalArgumentException("Expected \"=\" or \"!=\" after \"" + field + "\" in filter expression.");
+            }
+            String value = next();
+            if (value.startsWith("\"") || value.startsWith("'"))
+            {
+                value = value.substring(1);
+            }
+            CardQuery term = new Term(field, value);
+            return negate? new Not(term) : term;
+        }
+
+        private boolean accept(String token)
+        {
+            if (position < tokens.size() && tokens.get(position).equalsIgnoreCase(token))
+            {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private String next()
+        {
+            if (position >= tokens.size())
+            {
+                throw new IllegalArgumentException("Unexpected end of filter expression.");
+            }
+            return tokens.get(position++);
+        }
+    }
+
+    private static class Term extends CardQuery
+    {
+        private final String field;
+        private final String value;
+
+        Term(String field, String value)
+        {
+            this.field = field;
+            this.value = value;
+        }
+
+        @Override
+        public BitSet evaluate(CardIndex index)
+        {
+            return index.lookup(field, value);
+        }
+
+        @Override
+        public String toString()
+        {
+            return field + "=\"" + value + "\"";
+        }
+    }
+
+    private static class And extends CardQuery
+    {
+        private final CardQuery left, right;
+
+        And(CardQuery left, CardQuery right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public BitSet evaluate(CardIndex index)
+        {
+            BitSet bits = left.evaluate(index);
+            bits.and(right.evaluate(index));
+            return bits;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "(" + left + " and " + right + ")";
+        }
+    }
+
+    private static class Or extends CardQuery
+    {
+        private final CardQuery left, right;
+
+        Or(CardQuery left, CardQuery right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public BitSet evaluate(CardIndex index)
+        {
+            BitSet bits = left.evaluate(index);
+            bits.or(right.evaluate(index));
+            return bits;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "(" + left + " or " + right + ")";
+        }
+    }
+
+    private static class Not extends CardQuery
+    {
+        private final CardQuery query;
+
+        Not(CardQuery query)
+        {
+            this.query = query;
+        }
+
+        @Override
+        public BitSet evaluate(CardIndex index)
+        {
+            BitSet bits = index.all();
+            bits.andNot(query.evaluate(index));
+            return bits;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "not " + query;
+        }
+    }
+}
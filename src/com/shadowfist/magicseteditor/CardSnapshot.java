@@ -0,0 +1,287 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes a compact binary snapshot of parsed card records so that
+ * a large card database can be opened without downloading and parsing the
+ * CSV file again.
+ * <p>
+ * The file format, all integers big-endian, is
+ * <pre>
+ * header:  magic "SFCS", version, column count, record count, string count
+ * records: record count * column count string ids, -1 for a missing column
+ * offsets: string count + 1 byte offsets into the string data
+ * strings: the UTF-8 bytes of every distinct value, back to back
+ * </pre>
+ * Every record has the same width, so record <i>n</i> column <i>c</i> is
+ * found without reading anything before it. Values are stored once in the
+ * string table no matter how many cards use them.
+ * <p>
+ * The records are the spreadsheet columns as read from the CSV file, not
+ * the card fields made from them, so a build from a snapshot reads exactly
+ * what it would have read from the CSV file.
+ *
+ * @author cgreene
+ */
+public class CardSnapshot
+{
+    public static final int MAGIC = 0x53464353; // "SFCS"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 20;
+
+    /**
+     * Return true if the file starts with the snapshot magic number.
+     *
+     * @param file the file to check
+     * @return true if the file looks like a snapshot
+     * @throws IOException if the file can't be read
+     */
+    public static boolean isSnapshot(Path file) throws IOException
+    {
+        if (!Files.isRegularFile(file) || Files.size(file) < HEADER_SIZE)
+        {
+            return false;
+        }
+        try (InputStream in = Files.newInputStream(file))
+        {
+            byte[] magic = new byte[4];
+            int read = 0;
+            while (read < magic.length)
+            {
+                int n = in.read(magic, read, magic.length - read);
+                if (n < 0)
+                {
+                    return false;
+                }
+                read += n;
+            }
+            return ByteBuffer.wrap(magic).getInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Write the records to the file. The snapshot is written to a temporary
+     * file next to the destination and then moved over it, so a failed write
+     * never leaves a partial snapshot behind.
+     *
+     * @param records the parsed card records
+     * @param file the snapshot file to write
+     * @throws IOException if the file can't be written
+     */
+    public static void write(List<List<String>> records, Path file) throws IOException
+    {
+        int columns = 0;
+        for (List<String> values : records)
+        {
+            columns = Math.max(columns, values.size());
+        }
+
+        // build the string table
+        Map<String, Integer> ids = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        int[] table = new int[records.size() * columns];
+        Arrays.fill(table, -1);
+        for (int r = 0; r < records.size(); r++)
+        {
+            List<String> values = records.get(r);
+            for (int c = 0; c < values.size(); c++)
+            {
+                Integer id = ids.get(values.get(c));
+                if (id == null)
+                {
+                    id = strings.size();
+                    ids.put(values.get(c), id);
+                    strings.add(values.get(c).getBytes(StandardCharsets.UTF_8));
+                }
+                table[r * columns + c] = id;
+            }
+        }
+
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(columns);
+                out.writeInt(records.size());
+                out.writeInt(strings.size());
+                for (int id : table)
+                {
+                    out.writeInt(id);
+                }
+                int offset = 0;
+                for (byte[] string : strings)
+                {
+                    out.writeInt(offset);
+                    offset += string.length;
+                }
+                out.writeInt(offset);
+                for (byte[] string : strings)
+                {
+                    out.write(string);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Map the snapshot file into memory and return its records. Only the
+     * header is read up front; values are decoded from the mapped file the
+     * first time they are asked for, and each distinct value only once.
+     *
+     * @param file the snapshot file to read
+     * @return the card records, in the order they were written
+     * @throws IOException if the file can't be read or isn't a snapshot
+     */
+    public static List<List<String>> read(Path file) throws IOException
+    {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+        {
+            throw new IOException(file + " is not a card snapshot.");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION)
+        {
+            throw new IOException(file + " is a version " + version + " card snapshot, expected version " + VERSION + ".");
+        }
+        int columns = buffer.getInt(8);
+        int records = buffer.getInt(12);
+        int strings = buffer.getInt(16);
+        long size = HEADER_SIZE + 4L * records * columns + 4L * (strings + 1);
+        if (columns < 0 || records < 0 || strings < 0 || size > buffer.capacity()
+            || size + buffer.getInt((int) size - 4) != buffer.capacity())
+        {
+            throw new IOException(file + " is a truncated or corrupt card snapshot.");
+        }
+        check(file, buffer, columns, records, strings);
+        return new Records(buffer, columns, records, strings);
+    }
+
+    /**
+     * Check every string id and offset, so a corrupt snapshot fails when it
+     * is opened rather than when one of its values is first read.
+     */
+    private static void check(Path file, ByteBuffer buffer, int columns, int records, int strings) throws IOException
+    {
+        int offsetsStart = HEADER_SIZE + 4 * records * columns;
+        for (int position = HEADER_SIZE; position < offsetsStart; position += 4)
+        {
+            int id = buffer.getInt(position);
+            if (id < -1 || id >= strings)
+            {
+                throw new IOException(file + " is a corrupt card snapshot: string " + id + " of " + strings + ".");
+            }
+        }
+        int previous = 0;
+        for (int i = 0; i <= strings; i++)
+        {
+            int offset = buffer.getInt(offsetsStart + 4 * i);
+            if (offset < previous || (i == 0 && offset != 0))
+            {
+                throw new IOException(file + " is a corrupt card snapshot: string offset " + offset + ".");
+            }
+            previous = offset;
+        }
+    }
+
+    /**
+     * The records of a mapped snapshot.
+     */
+    private static class Records extends AbstractList<List<String>>
+    {
+        private final ByteBuffer buffer;
+        private final int columns;
+        private final int records;
+        private final int offsetsStart;
+        private final int stringsStart;
+        private final String[] decoded;
+
+        Records(ByteBuffer buffer, int columns, int records, int strings)
+        {
+            this.buffer = buffer;
+            this.columns = columns;
+            this.records = records;
+            this.offsetsStart = HEADER_SIZE + 4 * records * columns;
+            this.stringsStart = offsetsStart + 4 * (strings + 1);
+            this.decoded = new String[strings];
+        }
+
+        @Override
+        public List<String> get(int record)
+        {
+            if (record < 0 || record >= records)
+            {
+                throw new IndexOutOfBoundsException("Record " + record + " of " + records);
+            }
+            int start = HEADER_SIZE + 4 * record * columns;
+            List<String> values = new ArrayList<>(columns);
+            for (int c = 0; c < columns; c++)
+            {
+                int id = buffer.getInt(start + 4 * c);
+                if (id < 0)
+                {
+                    break;
+                }
+                values.add(string(id));
+            }
+            return values;
+        }
+
+        @Override
+        public int size()
+        {
+            return records;
+        }
+
+        private synchronized String string(int id)
+        {
+            String value = decoded[id];
+            if (value == null)
+            {
+                int from = buffer.getInt(offsetsStart + 4 * id);
+                int to = buffer.getInt(offsetsStart + 4 * (id + 1));
+                byte[] bytes = new byte[to - from];
+                ByteBuffer slice = buffer.duplicate();
+                slice.position(stringsStart + from);
+                slice.get(bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+                decoded[id] = value;
+            }
+            return value;
+        }
+    }
+}
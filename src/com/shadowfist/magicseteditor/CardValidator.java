@@ -0,0 +1,423 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.shadowfist.magicseteditor.ValidationReport.Issue;
+import com.shadowfist.magicseteditor.ValidationReport.Severity;
+
+/**
+ * Checks parsed card records before they are transformed, so a bad row is
+ * reported with every other problem in one {@link ValidationReport} instead
+ * of stopping the build part way through. The records are checked in
+ * parallel, one slice per processor.
+ * <p>
+ * Errors are problems that would break the card: too few columns, an
+ * empty type, stray <code>&lt;</code> or <code>&gt;</code> that MSE would
+ * read as markup, or punctuation in a cost. Warnings are values that are
+ * probably typos: unknown factions, types, resource codes or stats, a
+ * <code>W</code> resource (see {@link Main#toResources(String)}), keywords
+ * one or two letters away from those in {@link Main#PATTERN_BFA}, and
+ * designators used once that are one or two letters away from one used
+ * more often.
+ *
+ * @author cgreene
+ */
+public class CardValidator
+{
+    public static final List<String> COLUMN_NAMES = Collections.unmodifiableList(Arrays.asList("Title", "Subtitle",
+        "Faction", "CardType", "Cost", "Provides", "Fighting", "Power", "Body", "Text", "Artist", "Designer"));
+    public static final Set<String> FACTIONS = new HashSet<>(Arrays.asList("Architects", "Ascended", "Dragons",
+        "Hand", "Jammers", "Lotus", "Monarchs", "Purists", "Syndicate", "Unaligned"));
+    public static final Set<String> TYPES = new HashSet<>(Arrays.asList("Character", "Edge", "Event",
+        "Feng Shui Site", "Site", "State"));
+    /**
+     * The resource letters, before {@link Main#toResources(String)} turns A
+     * for Ascended into W: Ascended, Chi, Fire, Magic, Tech and Thunder.
+     */
+    public static final String RESOURCE_CODES = "ACFMTH";
+    public static final Pattern PATTERN_STAT = Pattern.compile("[0-9]{1,2}|X|D|\\*|-");
+    public static final Pattern PATTERN_COST = Pattern.compile("[0-9]{0,2}X?[A-Za-z]*");
+
+    /** The fewest records each thread is given. */
+    public static final int SLICE_SIZE = 256;
+
+    private static final Pattern PATTERN_WORD = Pattern.compile("[A-Z][A-Za-z-]+");
+    private static final List<String> KEYWORDS = keywords();
+
+    /**
+     * Check the records in parallel.
+     *
+     * @param source where the records came from, for the report
+     * @param records the parsed records
+     * @param rows the spreadsheet row of each record
+     * @return the problems found
+     */
+    public static ValidationReport validate(String source, List<List<String>> records, int[] rows)
+    {
+        return validate(source, records, rows, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Check the records on up to the number of threads, giving each at least
+     * {@link #SLICE_SIZE} records. The report is the same for any number.
+     *
+     * @param source where the records came from, for the report
+     * @param records the parsed records
+     * @param rows the spreadsheet row of each record
+     * @param processors the most threads to use
+     * @return the problems found
+     */
+    protected static ValidationReport validate(String source, final List<List<String>> records, final int[] rows,
+        int processors)
+    {
+        List<Issue> issues = new ArrayList<>();
+        // sorted, so rare designators are matched the same way every run
+        Map<String, Integer> designators = new TreeMap<>();
+        Map<String, Integer> firstUse = new HashMap<>();
+
+        int threads = Math.max(1, Math.min(processors, records.size() / SLICE_SIZE));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<Slice>> slices = new ArrayList<>();
+            int sliceSize = (records.size() + threads - 1) / threads;
+            for (int start = 0; start < records.size(); start += sliceSize)
+            {
+                final int from = start, to = Math.min(records.size(), start + sliceSize);
+                slices.add(pool.submit(new Callable<Slice>()
+                {
+                    @Override
+                    public Slice call()
+                    {
+                        Slice slice = new Slice();
+                        for (int i = from; i < to; i++)
+                        {
+                            checkRecord(records.get(i), rows[i], slice);
+                        }
+                        return slice;
+                    }
+                }));
+            }
+            // merge in slice order, keeping the first row each designator is
+            // used in, so the report doesn't depend on which slice ran first
+            for (Future<Slice> future : slices)
+            {
+                Slice slice = future.get();
+                issues.addAll(slice.issues);
+                for (Map.Entry<String, Integer> designator : slice.designators.entrySet())
+                {
+                    Integer count = designators.get(designator.getKey());
+                    designators.put(designator.getKey(), designator.getValue() + ((count == null)? 0 : count));
+                    Integer row = slice.firstUse.get(designator.getKey());
+                    Integer first = firstUse.get(designator.getKey());
+                    firstUse.put(designator.getKey(), (first == null)? row : Math.min(first, row));
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while validating cards.", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException("Validating cards failed.", e.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        checkRareDesignators(designators, firstUse, issues);
+        return new ValidationReport(source, records.size(), issues);
+    }
+
+    /**
+     * Return true if every value of the record is empty, like the blank rows
+     * at the end of a spreadsheet export.
+     *
+     * @param values the parsed record
+     * @return true if the record has no data
+     */
+    public static boolean isBlank(List<String> values)
+    {
+        for (String value : values)
+        {
+            if (!value.trim().isEmpty())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkRecord(List<String> values, int row, Slice slice)
+    {
+        List<Issue> issues = slice.issues;
+        if (isBlank(values))
+        {
+            issues.add(new Issue(row, "Title", Severity.WARNING, "The row is blank and is skipped.", ""));
+            return;
+        }
+        if (values.size() <= Main.COL_ARTIST)
+        {
+            issues.add(new Issue(row, COLUMN_NAMES.get(Math.min(values.size(), Main.COL_ARTIST)), Severity.ERROR,
+                "The row has " + values.size() + " columns, expected " + COLUMN_NAMES.size() + ".", ""));
+            return;
+        }
+        if (values.size() <= Main.COL_DESIGNER)
+        {
+            issues.add(new Issue(row, "Designer", Severity.WARNING, "The row has no Designer column.", ""));
+        }
+
+        String title = values.get(Main.COL_TITLE);
+        if (title.trim().isEmpty())
+        {
+            issues.add(new Issue(row, "Title", Severity.ERROR, "The card has no title.", title));
+        }
+
+        String faction = values.get(Main.COL_FACTION);
+        if (!faction.isEmpty() && !FACTIONS.contains(faction))
+        {
+            issues.add(new Issue(row, "Faction", Severity.WARNING, "Unknown faction " + faction + ".", faction));
+        }
+
+        String type = values.get(Main.COL_TYPE);
+        if (type.trim().isEmpty())
+        {
+            issues.add(new Issue(row, "CardType", Severity.ERROR, "The card has no type.", type));
+        }
+        else if (!TYPES.contains(type))
+        {
+            issues.add(new Issue(row, "CardType", Severity.WARNING, "Unknown card type " + type + ".", type));
+        }
+
+        checkResources(values, Main.COL_COST, row, issues);
+        checkResources(values, Main.COL_PROVIDES, row, issues);
+        for (int column : new int[] { Main.COL_FIGHTING, Main.COL_POWER, Main.COL_BODY })
+        {
+            String stat = values.get(column);
+            if (!stat.isEmpty() && !PATTERN_STAT.matcher(stat).matches())
+            {
+                issues.add(new Issue(row, COLUMN_NAMES.get(column), Severity.WARNING, "Unexpected "
+                    + COLUMN_NAMES.get(column) + " value " + stat + ".", stat));
+            }
+        }
+
+        checkRules(values.get(Main.COL_RULES), row, slice);
+    }
+
+    private static void checkResources(List<String> values, int column, int row, List<Issue> issues)
+    {
+        String resources = values.get(column);
+        String name = COLUMN_NAMES.get(column);
+        if (resources.isEmpty())
+        {
+            return;
+        }
+        if (column == Main.COL_COST && !PATTERN_COST.matcher(resources).matches())
+        {
+            issues.add(new Issue(row, name, Severity.ERROR, "Unexpected cost " + resources + ".", resources));
+            return;
+        }
+        for (int i = 0; i < resources.length(); i++)
+        {
+            char code = Character.toUpperCase(resources.charAt(i));
+            if (column == Main.COL_COST && (Character.isDigit(code) || code == 'X'))
+            {
+                continue;
+            }
+            if (code == 'W')
+            {
+                issues.add(new Issue(row, name, Severity.WARNING, "W is the MSE code for Ascended; use A in the "
+                    + "spreadsheet.", resources));
+            }
+            else if (!Character.isLetter(code))
+            {
+                issues.add(new Issue(row, name, Severity.ERROR, "Unexpected character '" + resources.charAt(i)
+                    + "' in " + name + ".", resources));
+            }
+            else if (RESOURCE_CODES.indexOf(code) < 0)
+            {
+                issues.add(new Issue(row, name, Severity.WARNING, "Unknown resource code " + resources.charAt(i)
+                    + ".", resources));
+            }
+        }
+    }
+
+    private static void checkRules(String rules, int row, Slice slice)
+    {
+        List<Issue> issues = slice.issues;
+        // every < and > should be part of a <Designator>
+        Matcher matcher = Main.PATTERN_DESIG.matcher(rules);
+        StringBuilder outside = new StringBuilder(rules.length());
+        int end = 0;
+        while (matcher.find())
+        {
+            outside.append(rules, end, matcher.start());
+            end = matcher.end();
+
+            String designator = matcher.group(1);
+            Integer count = slice.designators.get(designator);
+            slice.designators.put(designator, (count == null)? 1 : count + 1);
+            Integer first = slice.firstUse.get(designator);
+            if (first == null || row < first)
+            {
+                slice.firstUse.put(designator, row);
+            }
+        }
+        outside.append(rules, end, rules.length());
+        if (outside.indexOf("<") >= 0 || outside.indexOf(">") >= 0)
+        {
+            issues.add(new Issue(row, "Text", Severity.ERROR, "A < or > that isn't part of a <Designator>.", rules));
+        }
+
+        // capitalized words close to a keyword
+        String unbolded = Main.PATTERN_BFA.matcher(rules).replaceAll(" ");
+        Matcher words = PATTERN_WORD.matcher(unbolded);
+        while (words.find())
+        {
+            String word = words.group();
+            String keyword = closest(word, KEYWORDS);
+            if (keyword != null)
+            {
+                issues.add(new Issue(row, "Text", Severity.WARNING, "Unknown keyword " + word + ", did you mean "
+                    + keyword + "?", rules));
+            }
+        }
+    }
+
+    /**
+     * Warn about designators used once that are close to one used more
+     * often, since they are probably misspelled.
+     */
+    private static void checkRareDesignators(Map<String, Integer> designators, Map<String, Integer> firstUse,
+        List<Issue> issues)
+    {
+        List<String> common = new ArrayList<>();
+        for (Map.Entry<String, Integer> designator : designators.entrySet())
+        {
+            if (designator.getValue() > 1)
+            {
+                common.add(designator.getKey());
+            }
+        }
+        for (Map.Entry<String, Integer> designator : designators.entrySet())
+        {
+            if (designator.getValue() == 1)
+            {
+                String match = closest(designator.getKey(), common);
+                if (match != null)
+                {
+                    issues.add(new Issue(firstUse.get(designator.getKey()), "Text", Severity.WARNING,
+                        "Unknown designator <" + designator.getKey() + ">, did you mean <" + match + ">?",
+                        designator.getKey()));
+                }
+            }
+        }
+    }
+
+    /**
+     * What one thread found in its slice of the records.
+     */
+    private static class Slice
+    {
+        final List<Issue> issues = new ArrayList<>();
+        final Map<String, Integer> designators = new HashMap<>();
+        final Map<String, Integer> firstUse = new HashMap<>();
+    }
+
+    /**
+     * Return the candidate the word is probably a misspelling of: one that
+     * is within one edit, or two for long words, but isn't the word itself or
+     * the start of it, like Weapon is of Weapons.
+     */
+    private static String closest(String word, List<String> candidates)
+    {
+        int allowed = (word.length() >= 8)? 2 : 1;
+        if (word.length() < 5)
+        {
+            return null;
+        }
+        String lower = word.toLowerCase(Locale.ROOT);
+        for (String candidate : candidates)
+        {
+            String lowerCandidate = candidate.toLowerCase(Locale.ROOT);
+            if (Math.abs(candidate.length() - word.length()) <= allowed && !lower.startsWith(lowerCandidate)
+                && distance(lower, lowerCandidate, allowed) <= allowed)
+            {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the Levenshtein distance between the words, or a number larger
+     * than <code>limit</code> as soon as it's known to be larger.
+     */
+    private static int distance(String a, String b, int limit)
+    {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++)
+        {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++)
+        {
+            current[0] = i;
+            int best = current[0];
+            for (int j = 1; j <= b.length(); j++)
+            {
+                int cost = (a.charAt(i - 1) == b.charAt(j - 1))? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                best = Math.min(best, current[j]);
+            }
+            if (best > limit)
+            {
+                return best;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    /**
+     * The single-word keywords of {@link Main#PATTERN_BFA}.
+     */
+    private static List<String> keywords()
+    {
+        String pattern = Main.PATTERN_BFA.pattern();
+        List<String> keywords = new ArrayList<>();
+        for (String keyword : pattern.substring(1, pattern.length() - 1).split("\\|"))
+        {
+            if (keyword.indexOf(' ') < 0)
+            {
+                keywords.add(keyword);
+            }
+        }
+        return keywords;
+    }
+}
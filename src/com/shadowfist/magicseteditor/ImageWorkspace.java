@@ -0,0 +1,373 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The directory that card images are exported into, with a directory for
+ * each set that is reused by later builds of the same set instead of making
+ * a new temporary directory every time, like
+ * <pre>
+ * shadowfist-images/
+ *     playtest.mse-set-1a2b3c4d/
+ *         .in-use
+ *         001-All the Power.jpg
+ * </pre>
+ * A directory is marked in use by a locked <code>.in-use</code> file while a
+ * build exports into it. Once released, directories are kept until the
+ * images in them are more than the size cap, then the least recently used
+ * are deleted.
+ * <p>
+ * Opening a workspace deletes the directories left in use by builds that
+ * died, and the <code>mse-images</code> temporary directories of older
+ * versions that have been left untouched for a day. That is the only full
+ * scan; after it the size of each directory is kept in memory and only a
+ * released directory is read again.
+ *
+ * @author cgreene
+ */
+public class ImageWorkspace
+{
+    /** Marks, and is locked in, a directory that is being exported into. */
+    public static final String MARKER = ".in-use";
+    /** How long a temporary directory of an older version is kept, in milliseconds. */
+    public static final long ABANDONED_AGE = 24 * 60 * 60 * 1000L;
+    private static final ConcurrentMap<Path, ImageWorkspace> WORKSPACES = new ConcurrentHashMap<>();
+
+    private final Path root;
+    private long maxSize;
+    /** The size of each directory not in use, least recently used first. */
+    private final LinkedHashMap<Path, Long> idle = new LinkedHashMap<>();
+    private final Map<Path, FileLock> active = new HashMap<>();
+    private long idleSize;
+
+    private ImageWorkspace(Path root, long maxSize) throws IOException
+    {
+        this.root = root;
+        this.maxSize = maxSize;
+        Files.createDirectories(root);
+        cleanUp();
+        deleteTemporaryDirectories();
+    }
+
+    /**
+     * Return the workspace in the directory, opening it the first time it's
+     * asked for. Builds in one JVM share the workspace of a directory until
+     * it's {@link #close() closed}.
+     *
+     * @param root the directory of the workspace
+     * @param maxSize the most bytes of images to keep in directories not in
+     *            use, if the workspace isn't open yet; use
+     *            {@link #setMaxSize(long)} to change it once it is
+     * @return the workspace
+     * @throws IOException if the directory can't be made or scanned
+     */
+    public static ImageWorkspace open(Path root, long maxSize) throws IOException
+    {
+        Path key = root.toAbsolutePath().normalize();
+        ImageWorkspace workspace = WORKSPACES.get(key);
+        if (workspace == null)
+        {
+            synchronized (WORKSPACES)
+            {
+                workspace = WORKSPACES.get(key);
+                if (workspace == null)
+                {
+                    workspace = new ImageWorkspace(key, maxSize);
+                    WORKSPACES.put(key, workspace);
+                }
+            }
+        }
+        return workspace;
+    }
+
+    /**
+     * Forget the workspace, so the next {@link #open(Path, long)} of its
+     * directory scans it again. Directories in use stay locked until they
+     * are released.
+     */
+    public void close()
+    {
+        WORKSPACES.remove(root, this);
+    }
+
+    /**
+     * @return the directory of the workspace
+     */
+    public Path getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * @param maxSize the most bytes of images to keep in directories not in
+     *            use
+     * @throws IOException if a directory can't be deleted
+     */
+    public synchronized void setMaxSize(long maxSize) throws IOException
+    {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * @return the bytes of images in directories not in use
+     */
+    public synchronized long getIdleSize()
+    {
+        return idleSize;
+    }
+
+    /**
+     * Take the directory of the set's images for a build, making it if
+     * needed. It keeps the images of the last build of the set until it's
+     * given back with {@link #release(Path, boolean)}.
+     *
+     * @param mseSetFile the mse-set file the images are exported from
+     * @return the directory
+     * @throws IOException if the directory can't be made, or it's in use by
+     *             another build
+     */
+    public synchronized Path acquire(Path mseSetFile) throws IOException
+    {
+        Path path = mseSetFile.toAbsolutePath().normalize();
+        String name = path.getFileName().toString().replaceAll("[^A-Za-z0-9._-]", "_") + "-"
+            + String.format(Locale.ROOT, "%08x", path.toString().hashCode());
+        Path directory = root.resolve(name);
+        if (active.containsKey(directory))
+        {
+            throw new IOException("The images of " + mseSetFile + " are already being exported.");
+        }
+        Files.createDirectories(directory);
+        FileLock lock = lock(directory);
+        if (lock == null)
+        {
+            throw new IOException("The images of " + mseSetFile + " are being exported by another process.");
+        }
+        Long size = idle.remove(directory);
+        if (size != null)
+        {
+            idleSize -= size;
+        }
+        active.put(directory, lock);
+        return directory;
+    }
+
+    /**
+     * Give back a directory taken with {@link #acquire(Path)}. A kept
+     * directory becomes the most recently used, and the least recently used
+     * are deleted if that puts the workspace over its size cap.
+     *
+     * @param directory the directory
+     * @param keep true to keep the images for later builds, false if they
+     *            can't be trusted and the directory should be deleted
+     * @throws IOException if a directory can't be deleted
+     */
+    public synchronized void release(Path directory, boolean keep) throws IOException
+    {
+        FileLock lock = active.remove(directory);
+        if (lock == null)
+        {
+            return;
+        }
+        lock.channel().close();
+        if (!keep)
+        {
+            Main.deleteDirectory(directory);
+            return;
+        }
+        Files.deleteIfExists(directory.resolve(MARKER));
+        Files.setLastModifiedTime(directory, FileTime.fromMillis(System.currentTimeMillis()));
+        long size = sizeOf(directory);
+        idle.put(directory, size);
+        idleSize += size;
+        evict();
+    }
+
+    /**
+     * Delete the directories left in use by builds that died, and note the
+     * size and last use of the rest.
+     */
+    private void cleanUp() throws IOException
+    {
+        final Map<Path, FileTime> used = new HashMap<>();
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(root))
+        {
+            for (Path directory : directories)
+            {
+                if (!Files.isDirectory(directory))
+                {
+                    continue;
+                }
+                if (Files.exists(directory.resolve(MARKER)))
+                {
+                    FileLock lock = lock(directory);
+                    if (lock == null)
+                    {
+                        // another process is exporting into it
+                        continue;
+                    }
+                    lock.channel().close();
+                    Main.deleteDirectory(directory);
+                    continue;
+                }
+                used.put(directory, Files.getLastModifiedTime(directory));
+            }
+        }
+        List<Path> oldestFirst = new ArrayList<>(used.keySet());
+        Collections.sort(oldestFirst, new Comparator<Path>()
+        {
+            @Override
+            public int compare(Path a, Path b)
+            {
+                return used.get(a).compareTo(used.get(b));
+            }
+        });
+        for (Path directory : oldestFirst)
+        {
+            long size = sizeOf(directory);
+            idle.put(directory, size);
+            idleSize += size;
+        }
+        evict();
+    }
+
+    /**
+     * Delete the <code>mse-images</code> temporary directories that older
+     * versions exported into and never deleted. Only directories nothing
+     * has been written to for {@link #ABANDONED_AGE}, and that aren't
+     * locked by a build, are deleted; anything else is left for the user.
+     */
+    private void deleteTemporaryDirectories()
+    {
+        Path temp = Paths.get(System.getProperty("java.io.tmpdir"));
+        long abandoned = System.currentTimeMillis() - ABANDONED_AGE;
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(temp, "mse-images*"))
+        {
+            for (Path directory : directories)
+            {
+                try
+                {
+                    if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)
+                        || lastModified(directory) > abandoned)
+                    {
+                        continue;
+                    }
+                    if (Files.exists(directory.resolve(MARKER)))
+                    {
+                        FileLock lock = lock(directory);
+                        if (lock == null)
+                        {
+                            continue;
+                        }
+                        lock.channel().close();
+                    }
+                    Main.deleteDirectory(directory);
+                }
+                catch (IOException e)
+                {
+                    // leave it; it doesn't stop the build
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // leave them; they don't stop the build
+        }
+    }
+
+    /**
+     * Return when the directory or a file in it was last written.
+     */
+    private static long lastModified(Path directory) throws IOException
+    {
+        long modified = Files.getLastModifiedTime(directory).toMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+            {
+                modified = Math.max(modified, Files.getLastModifiedTime(file, LinkOption.NOFOLLOW_LINKS).toMillis());
+            }
+        }
+        return modified;
+    }
+
+    /** Delete the least recently used directories until under the cap. */
+    private void evict() throws IOException
+    {
+        Iterator<Map.Entry<Path, Long>> oldest = idle.entrySet().iterator();
+        while (idleSize > maxSize && oldest.hasNext())
+        {
+            Map.Entry<Path, Long> entry = oldest.next();
+            oldest.remove();
+            idleSize -= entry.getValue();
+            Main.deleteDirectory(entry.getKey());
+        }
+    }
+
+    /**
+     * Lock the marker of the directory, making it if needed.
+     *
+     * @return the lock, or null if another process holds it
+     */
+    private static FileLock lock(Path directory) throws IOException
+    {
+        FileChannel channel = FileChannel.open(directory.resolve(MARKER), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try
+        {
+            lock = channel.tryLock();
+            return lock;
+        }
+        catch (OverlappingFileLockException e)
+        {
+            // held in this JVM
+            return null;
+        }
+        finally
+        {
+            if (lock == null)
+            {
+                channel.close();
+            }
+        }
+    }
+
+    private static long sizeOf(Path directory) throws IOException
+    {
+        long size = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+            {
+                size += Files.readAttributes(file, BasicFileAttributes.class).size();
+            }
+        }
+        return size;
+    }
+}
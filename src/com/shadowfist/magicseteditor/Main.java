@@ -4,28 +4,47 @@
 package com.shadowfist.magicseteditor;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.ZipFile;
 
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
@@ -86,7 +105,11 @@ import org.apache.pdfbox.util.Matrix;
  */
 public class Main
 {
-    public static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
+    /**
+     * The format of the time fields of a card. It is immutable, so one
+     * instance can be shared by every build.
+     */
+    public static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     public static final String DEFAULT_PROPERTIES = "default.properties";
     public static final String DEFAULT_FILENAME = "shadowfist-cardset.mse-set";
     public static final String KEY_DIRECTORY = "directory";
@@ -121,61 +144,11 @@ public class Main
     		+ "Tactics|Toughness|Unstoppable|Identity|Limited|No Max|Not Cumulative|One-Shot|Schtick|"
     		+ "Toast It|Uncopyable|Unique|Vehicle|Weapon)");
 
-    private static boolean debug;
-
-
-    /**
-     * Will be set to value of "mse" in {@link #DEFAULT_PROPERTIES}.
-     */
-    private static Path defaultMsePath;
-    /**
-     * Will be set to value of "user.dir" in System properties.
-     */
-    private static Path defaultOutputDirectory;
-    /**
-     * Will be set to value of "filename" in {@link #DEFAULT_PROPERTIES}
-     * or set to {@link #DEFAULT_FILENAME}.
-     */
-    private static String defaultFileName;
-    /**
-     * Will be set to value of "url" in {@link #DEFAULT_PROPERTIES}.
-     */
-    private static URL defaultURL;
-
-
-    /**
-     * Set by command-line input or defaults as the file path to write to.
-     */
-    private static Path mseSetFilePath;
-    /**
-     * Set by command-line input or defaults as path to MSE executable.
-     */
-    private static Path mseExePath;
-    /**
-     * Set by command-line input or defaults as the url to download from.
-     */
-    private static URL inputUrl;
     /**
-     * The copyright statement from the properties file.
+     * The card fields {@link #renderCard(Map, String)} always writes first.
      */
-    private static String copyright;
-
-    /**
-     * Load the default settings.
-     */
-    static
-    {
-        try
-        {
-            // load input
-            determineDefaultValues();
-        }
-        catch (IOException e)
-        {
-            e.printStackTrace();
-            System.out.println(getHelpString());
-        }
-    }
+    protected static final List<String> HEADER_FIELDS = Arrays.asList("has styling", "notes", "time created",
+        "time modified");
 
     /**
      * Return a description of how to use this program.
@@ -192,6 +165,28 @@ public class Main
         buff.append("    -d:     The directory to write the Magic Set Editor file to. Defaults to the current working directory.\n");
         buff.append("    -f:     The file name of the out file. Defaults to \"" + DEFAULT_FILENAME + "\". Should end with .mse-set\n");
         buff.append("    -mse:   Optional. Set location of mse.exe Windows executable. Usage -mse=C:\\tmp\\mse.exe\n");
+        buff.append("    -where: Optional. Only build the cards matching a filter on faction, type, designer or keyword.\n");
+        buff.append("            Usage -where=\"faction=Lotus and type=Character\"\n");
+        buff.append("    -snapshot: Optional. Write the downloaded cards to a binary snapshot file that can be used as the -u\n");
+        buff.append("            source of later runs. Usage -snapshot=C:\\tmp\\cards.sfcs then -u=file:///C:/tmp/cards.sfcs\n");
+        buff.append("    -diff:  Optional. Write a changelog of the cards in -u compared to a previous version, which can be a\n");
+        buff.append("            CSV file, mse-set file or snapshot. Usage -diff=file:///C:/tmp/playtest2.mse-set\n");
+        buff.append("    -changed: Optional. With -diff, build a set and PDF of only the changed and added cards.\n");
+        buff.append("    -merge: Optional. Update the matching cards of an existing mse-set file, keeping changes made in MSE\n");
+        buff.append("            such as styling, notes, images and cards not in the spreadsheet.\n");
+        buff.append("    -art:   Optional. A directory or base URL with artwork named after the card titles, e.g. \"All the Power.jpg\".\n");
+        buff.append("            The art is scaled to fit the card and stored in the mse-set. Usage -art=C:\\tmp\\art\n");
+        buff.append("    -timeout: Optional. Seconds to wait for a download or for MSE to answer before failing. Defaults to\n");
+        buff.append("            " + BuildConfig.DEFAULT_NETWORK_TIMEOUT / 1000 + " for downloads and " + BuildConfig.DEFAULT_MSE_TIMEOUT / 1000 + " for MSE. Usage -timeout=120\n");
+        buff.append("    -images: Optional. The directory to export card images into, kept between runs of the same set.\n");
+        buff.append("            Defaults to shadowfist-images in the temp directory. Usage -images=C:\\tmp\\images\n");
+        buff.append("    -imagecache: Optional. Megabytes of card images to keep between runs, deleting those of the least\n");
+        buff.append("            recently built sets first. Defaults to " + BuildConfig.DEFAULT_IMAGE_CACHE_SIZE / 1024 / 1024 + ". Usage -imagecache=100\n");
+        buff.append("    -serve: Optional. Instead of building, answer build requests over HTTP on a port, using the other\n");
+        buff.append("            arguments as the settings of every build. POST a CSV file to /build, or GET /build?url=...\n");
+        buff.append("            Listens on this machine only unless an address is given. Usage -serve=8080 or -serve=0.0.0.0:8080\n");
+        buff.append("    -hosts: Optional. With -serve, the hosts that url= may download from besides the host of -u.\n");
+        buff.append("            Usage -hosts=docs.google.com,googleusercontent.com\n");
         buff.append("    -debug: Optional. Provide more output.\n");
         buff.append("\n");
         return buff.toString();
@@ -207,26 +202,27 @@ public class Main
     {
         try
         {
-            parseArguments(args);
-
-            // download csv and transform into mse-set
-            String cardContents = transformInput();
-
-            // build set file
-            String setData = buildSetFile(cardContents);
-
-            // create zip file for mse-set
-            writeMseFile(setData);
-
-            // use mse command line interface to create image files in temp dir
-            Path imagesDir = exportCardImages();
-
-            // collate into pdf file
-            if (imagesDir != null)
+            // the -serve argument starts the service instead of a build
+            List<String> buildArgs = new ArrayList<>();
+            String serveAddress = null;
+            List<String> hosts = new ArrayList<>();
+            for (String arg : args)
             {
-                collateIntoPdf(imagesDir);
+                if (arg.startsWith("-serve"))
+                    serveAddress = stripFlag(arg);
+                else if (arg.startsWith("-hosts"))
+                    hosts.addAll(Arrays.asList(stripFlag(arg).split(",")));
+                else
+                    buildArgs.add(arg);
+            }
+            BuildConfig config = parseArguments(buildArgs.toArray(new String[buildArgs.size()]));
+            if (serveAddress != null)
+            {
+                serve(config, toServeAddress(serveAddress), hosts);
+                return;
             }
 
+            new SetBuilder(config).listener(new ProgressMeter(new ConsoleListener(config.isDebug()))).build();
             System.out.println("done.");
         }
         catch (Exception e)
@@ -236,6 +232,50 @@ public class Main
         }
     }
 
+    /**
+     * Return the address of a -serve argument, <code>port</code> for the
+     * loopback address or <code>host:port</code>.
+     *
+     * @param arg the argument
+     * @return the address to listen on
+     */
+    protected static InetSocketAddress toServeAddress(String arg)
+    {
+        int colon = arg.lastIndexOf(':');
+        if (colon < 0)
+        {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(arg));
+        }
+        String host = arg.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]"))
+        {
+            host = host.substring(1, host.length() - 1);
+        }
+        return new InetSocketAddress(host, Integer.parseInt(arg.substring(colon + 1)));
+    }
+
+    /**
+     * Start a {@link BuildServer} that builds with the settings of the
+     * config, keeping its files in the temporary directory. It runs until
+     * the JVM is stopped.
+     *
+     * @param config the settings of every build
+     * @param address the address to listen on
+     * @param hosts the hosts url= may download from besides the host of the
+     *            config's input URL
+     * @throws IOException if the address can't be used
+     */
+    protected static void serve(BuildConfig config, InetSocketAddress address, List<String> hosts) throws IOException
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path workDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "shadowfist-builds");
+        BuildServer server = new BuildServer(address, config, workDirectory, threads, threads * 16, 100)
+            .allowUrlHosts(hosts).listener(new ConsoleListener(config.isDebug()));
+        server.start();
+        System.out.println("Serving builds at http://" + server.getAddress().getHostString() + ":"
+            + server.getAddress().getPort() + "/build");
+    }
+
 	/**
      * Wrap the card contents in set meta-data.
      *
@@ -257,16 +297,56 @@ public class Main
         return set.toString();
     }
 
+    /**
+     * Export the card images of the mse-set file with
+     * {@link #exportCardImages(BuildContext, Path)} and collate them into a
+     * PDF file with {@link #collateIntoPdf(BuildContext, Path)}. The images
+     * go in the set's directory of the {@link ImageWorkspace}, which is
+     * deleted if the PDF can't be made.
+     *
+     * @param context the build
+     * @return the PDF file, or null if MSE isn't available
+     * @throws IOException if exporting or collating fails
+     */
+    protected static Path exportPdf(BuildContext context) throws IOException
+    {
+        BuildConfig config = context.getConfig();
+        if (!canExport(context))
+        {
+            return null;
+        }
+        ImageWorkspace workspace = ImageWorkspace.open(config.getImageDirectory(), config.getImageCacheSize());
+        Path imagesDir = workspace.acquire(config.getMseSetFile());
+        boolean collated = false;
+        try
+        {
+            exportCardImages(context, imagesDir);
+            Path pdfFile = collateIntoPdf(context, imagesDir);
+            collated = true;
+            return pdfFile;
+        }
+        finally
+        {
+            workspace.release(imagesDir, collated);
+        }
+    }
+
     /**
      * Take all the image files from the <code>imagesDir</code> and write them
-     * into a PDF file. 
+     * into a PDF file. Each page is given to the {@link BuildSink} of the
+     * build once it is laid out.
+     * @param context the build
      * @param imagesDir
+     * @return the PDF file
      * @throws IOException
      */
-	protected static void collateIntoPdf(Path imagesDir) throws IOException
+	protected static Path collateIntoPdf(BuildContext context, Path imagesDir) throws IOException
 	{
+		boolean debug = context.getConfig().isDebug();
+		BuildListener listener = context.getListener();
+		Path mseSetFilePath = context.getConfig().getMseSetFile();
 		if (!debug)
-			System.out.println("Collating PDF file");
+			listener.message("Collating PDF file");
 
 		PDDocument doc = new PDDocument();
 		// set up size of image output onto page at 2.5/3.5 ratio
@@ -274,11 +354,14 @@ public class Main
 
 		int sector = 1; // there will be 8 cards on the page
 		PDPageContentStream contents = null;
+		List<Path> pageImages = new ArrayList<>(8);
 		try
 		{
-			File[] imgFiles = imagesDir.toFile().listFiles();
-			for (int i = 0; i < imgFiles.length; i++)
+			List<Path> imgFiles = listImages(imagesDir);
+			for (int i = 0; i < imgFiles.size(); i++)
 			{
+				context.checkCancelled();
+
 				// add a new page
 				if (sector == 1)
 				{
@@ -291,11 +374,11 @@ public class Main
 				}
 
 				if (debug)
-					System.out.println("Adding to PDF page, image: " + imgFiles[i]);
-				else
-					System.out.print(".");
+					listener.message("Adding to PDF page, image: " + imgFiles.get(i));
+				listener.progress(BuildListener.Stage.COLLATE, i + 1, imgFiles.size());
+				pageImages.add(imgFiles.get(i));
 
-				PDImageXObject pdImage = PDImageXObject.createFromFile(imgFiles[i].toString(), doc);
+				PDImageXObject pdImage = PDImageXObject.createFromFile(imgFiles.get(i).toString(), doc);
 
 				// determine coordinates for specific sector
 				// if sector is 1-4 is top row, 5-8 is bottom row.
@@ -322,27 +405,28 @@ public class Main
 				contents.drawImage(pdImage, x, y, width, height);
 
 				// close page
-				if (sector == 8 || i == imgFiles.length - 1)
+				if (sector == 8 || i == imgFiles.size() - 1)
 				{
 					contents.close();
+					context.getSink().pdfPage(doc.getNumberOfPages(), pageImages);
+					pageImages = new ArrayList<>(8);
 				}
 
 				// move to next sector
 				sector = (sector == 8)? 1 : sector + 1;
 			}
 
-			if (!debug)
-				System.out.println("");
 
 			String pdfFileName = mseSetFilePath.getFileName().toString().replace("mse-set", "pdf");
 			File pdfFile = new File(mseSetFilePath.getParent().toFile(), pdfFileName);
 			if (pdfFile.exists())
 			{
-				System.out.println("Overwriting PDF file...");
+				listener.message("Overwriting PDF file...");
 				pdfFile.delete();
 			}
-			System.out.println("Writing PDF file: " + pdfFile);
+			listener.message("Writing PDF file: " + pdfFile);
 			doc.save(pdfFile);
+			return pdfFile.toPath();
 		}
 		finally
 		{
@@ -351,38 +435,32 @@ public class Main
 	}
 
     /**
-     * Loads properties from default.properties in the root of the classpath
-     * and also locates the "user.dir" value. The file looks like
+     * Loads properties from default.properties in the working directory or
+     * the root of the classpath. The file looks like
      * <pre>
      * url=https://docs.google.com/feeds/download/spreadsheets/Export?key=1fM5tyIo1KZI8eE8VQdLVkVRG30J_224Nk1LKb3PYuZ0&exportFormat=csv
      * directory=C:/Users/cgreene/Documents/Shadowfist
      * filename=my-shadowfist-cardset.mse-set
      * </pre>
+     * @param debug true to print the properties loaded
+     * @return the default settings
      * @throws IOException if properties load fails
      */
-    protected static void determineDefaultValues() throws IOException
+    protected static Properties determineDefaultValues(boolean debug) throws IOException
     {
-        // determine output dir
-        defaultOutputDirectory = Paths.get(System.getProperty("user.dir"));
-        if (defaultOutputDirectory == null || !defaultOutputDirectory.toFile().exists())
-        {
-            throw new IllegalStateException("The current working directory couldn't be found.");
-        }
-
         // load properties
         Properties properties = new Properties();
         // try load from working dir
-        try
+        try (FileReader reader = new FileReader(DEFAULT_PROPERTIES))
         {
-            properties.load(new FileReader(DEFAULT_PROPERTIES));
+            properties.load(reader);
         }
         catch (Exception e)
         {
             System.out.println("Could not load default.properties working directory. Trying classpath...");
 
             // try from root classpath
-            InputStream stream = Main.class.getResourceAsStream("/" + DEFAULT_PROPERTIES);
-            try
+            try (InputStream stream = Main.class.getResourceAsStream("/" + DEFAULT_PROPERTIES))
             {
                 properties.load(stream);
             }
@@ -393,130 +471,213 @@ public class Main
         }
         if (debug)
         	System.out.println("Loaded properties " + properties);
+        return properties;
+    }
 
-        // determine mse location
-        defaultMsePath = Paths.get(properties.getProperty("mse"));
-
-        // determine default filename
-        defaultFileName = properties.getProperty(KEY_FILENAME);
-        if (defaultFileName == null)
+    /**
+     * @param context the build
+     * @return true if the MSE executable is set and exists, otherwise
+     *         telling the listener why card export is skipped
+     */
+    private static boolean canExport(BuildContext context)
+    {
+        Path mseExePath = context.getConfig().getMseExe();
+        if (mseExePath == null)
         {
-            defaultFileName = DEFAULT_FILENAME;
+            context.getListener().message("Path to mse.exe is not set. Skipping card export...");
+            return false;
         }
-
-        // determine default URL
-        String defUrlString = properties.getProperty(KEY_URL);
-        if (defUrlString != null)
+        if (!mseExePath.toFile().exists())
         {
-            defaultURL = new URL(defUrlString);
-            if (debug)
-            	System.out.println("Setting defaultURL " + defaultURL);
+            context.getListener().message("Path to mse.exe, " + mseExePath + ", does not exist. Skipping card export...");
+            return false;
         }
-
-        // determine the copyright
-        copyright = properties.getProperty("copyright");
+        return true;
     }
 
     /**
      * Start the MDE command line interface and export all the card in the set
-     * as JPG images into the working directory.
+     * as JPG images into the directory, overwriting the images of the last
+     * build and deleting those of cards no longer in the set. Each image is
+     * given to the {@link BuildSink} of the build once it is written.
      *
+     * @param context the build
+     * @param imagesDir the directory to export into
      * @throws IOException
      */
-	protected static Path exportCardImages() throws IOException
+	protected static void exportCardImages(BuildContext context, Path imagesDir) throws IOException
 	{
-		if (mseExePath == null)
+		boolean debug = context.getConfig().isDebug();
+		BuildListener listener = context.getListener();
+		Path mseExePath = context.getConfig().getMseExe();
+		Path mseSetFilePath = context.getConfig().getMseSetFile();
+		listener.message("Starting mse cli...");
+
+		Set<Path> written = new HashSet<>();
+		try (MseProcess mse = MseProcess.start(mseExePath, mseSetFilePath, context))
 		{
-			System.out.println("Path to mse.exe is not set. Skipping card export...");
-			return null;
+			// get information
+	        if (debug)
+	        	listener.message("Getting set length...");
+			String number = mse.command("length(set.cards)");
+	        listener.message("Size of card set: " + number);
+			int length = Integer.parseInt(number.trim());
+
+			// export all images
+			for (int i = 0; i < length; i++)
+			{
+			    // get name of a card
+			    String name = mse.command("set.cards[" + i + "].title");
+		        if (debug)
+		        	listener.message("Getting card: " + name);
+
+			    // render a card
+			    number = String.format("%03d", i + 1);
+			    String command = imagesDir+File.separator;
+			    command = command.replace('\\', '/');
+			    command = "write_image_file(file:\""+command+number+"-"+name+".jpg\", set.cards[" + i + "])";
+		        if (debug)
+		        	listener.message("building command " + command);
+			    String imageWritten = mse.command(command);
+		        if (debug)
+		        	listener.message("Wrote image file: " + imageWritten);
+			    Path image = imagesDir.resolve(number + "-" + name + ".jpg");
+			    written.add(image);
+			    context.getSink().cardImage(i, name, image);
+			    listener.progress(BuildListener.Stage.EXPORT, i + 1, length);
+			}
 		}
-		if (!mseExePath.toFile().exists())
+		catch (NumberFormatException e)
 		{
-			System.out.println("Path to mse.exe, " + mseExePath + ", does not exist. Skipping card export...");
-			return null;
+			throw new IOException("MSE did not answer with the number of cards: " + e.getMessage(), e);
 		}
-		System.out.println("Starting mse cli...");
-		ProcessBuilder builder = new ProcessBuilder(mseExePath.toString(), "--cli", "--quiet", mseSetFilePath.toString());
-		builder.redirectErrorStream(true);
-		Process mse = builder.start();
-
-		// wrap processes' input and output
-		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(mse.getOutputStream()));
-		BufferedReader reader = new BufferedReader(new InputStreamReader(mse.getInputStream()));
 
-		// get information
-        if (debug)
-        	System.out.println("Getting set length...");
-		writer.write("length(set.cards)");
-		writer.newLine();
-		writer.flush();
-		String number = reader.readLine();
-        System.out.println("Size of card set: " + number);
-		int length = Integer.parseInt(number);
-
-		// grab a temp dir to write to 
-		Path tempDir = Files.createTempDirectory("mse-images");
-
-		// export all images
-		for (int i = 0; i < length; i++)
+		// the images of cards since removed or renamed
+		for (Path image : listImages(imagesDir))
 		{
-		    // get name of a card
-	        if (debug)
-	        	System.out.print("Getting card: ");
-	        else
-	        	System.out.print(".");
-		    writer.write("set.cards[" + i + "].title");
-		    writer.newLine();
-		    writer.flush();
-		    String name = reader.readLine();
-	        if (debug)
-	        	System.out.println(name);
-
-		    // render a card
-		    number = String.format("%03d", i + 1);
-		    String command = tempDir+File.separator;
-		    command = command.replace('\\', '/');
-		    command = "write_image_file(file:\""+command+number+"-"+name+".jpg\", set.cards[" + i + "])";
-	        if (debug)
-	        	System.out.println("building command " + command);
-		    writer.write(command + "\n");
-		    writer.newLine();
-		    writer.flush();
-		    String imageWritten = reader.readLine();
-	        if (debug)
-	        	System.out.println("Wrote image file: " + imageWritten);
+			if (!written.contains(image))
+			{
+				Files.deleteIfExists(image);
+			}
 		}
-        if (!debug)
-        	System.out.println("");
-		mse.destroy();
-		return tempDir;
 	}
 
     /**
-     * Sets the value of {@link #inputUrl} and {@link #mseSetFilePath}.
+     * @param imagesDir a directory of exported images
+     * @return the JPG files in it, in order of their names
+     * @throws IOException if the directory can't be read
+     */
+    protected static List<Path> listImages(Path imagesDir) throws IOException
+    {
+        List<Path> images = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(imagesDir, "*.jpg"))
+        {
+            for (Path file : files)
+            {
+                images.add(file);
+            }
+        }
+        Collections.sort(images);
+        return images;
+    }
+
+    /**
+     * Delete a directory and everything in it, such as exported images.
+     * Links are deleted, not followed.
+     *
+     * @param directory the directory
+     * @throws IOException if a file can't be deleted
+     */
+    protected static void deleteDirectory(Path directory) throws IOException
+    {
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS))
+        {
+            return;
+        }
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+            {
+                Files.deleteIfExists(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException
+            {
+                if (e != null)
+                {
+                    throw e;
+                }
+                Files.deleteIfExists(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Determine the settings of the build from the arguments, using
+     * {@link #determineDefaultValues(boolean)} for anything not specified.
      *
      * @param args arguments passed into the application
+     * @return the settings of the build
+     * @throws IOException if the defaults can't be loaded
      * @throws MalformedURLException if a URL was specified but it was invalid.
      */
-    protected static void parseArguments(String[] args) throws MalformedURLException
+    protected static BuildConfig parseArguments(String[] args) throws IOException
     {
-        inputUrl = defaultURL;
-        mseSetFilePath = defaultOutputDirectory.resolve(defaultFileName);
+        boolean debug = args != null && Arrays.asList(args).contains("-debug");
+        return parseArguments(args, determineDefaultValues(debug));
+    }
+
+    /**
+     * Determine the settings of the build from the arguments and the
+     * default settings. The output directory defaults to the "user.dir"
+     * System property.
+     *
+     * @param args arguments passed into the application
+     * @param defaults the settings loaded from {@link #DEFAULT_PROPERTIES}
+     * @return the settings of the build
+     * @throws MalformedURLException if a URL was specified but it was invalid.
+     */
+    protected static BuildConfig parseArguments(String[] args, Properties defaults) throws MalformedURLException
+    {
+        // determine output dir
+        Path defaultOutputDirectory = Paths.get(System.getProperty("user.dir"));
+        if (!defaultOutputDirectory.toFile().exists())
+        {
+            throw new IllegalStateException("The current working directory couldn't be found.");
+        }
+        String defaultFileName = defaults.getProperty(KEY_FILENAME, DEFAULT_FILENAME);
+        String defaultUrl = defaults.getProperty(KEY_URL);
+
+        BuildConfig.Builder config = BuildConfig.builder()
+            .inputUrl((defaultUrl != null)? new URL(defaultUrl) : null)
+            .mseSetFile(defaultOutputDirectory.resolve(defaultFileName))
+            .copyright(defaults.getProperty("copyright"));
 
         if (args != null)
         {
             String specifiedMseFileName = null;
             Path specifiedOutputPath = null;
+            Path mseExePath = null;
+            URL diffUrl = null;
+            boolean changedOnly = false;
             for (String arg : args)
             {
                 if (arg.startsWith("-u"))
                 {
                     String url = stripFlag(arg);
-                    inputUrl = new URL(url);
+                    config.inputUrl(new URL(url));
                 }
                 else if (arg.startsWith("-debug"))
                 {
-                    debug = true;
+                    config.debug(true);
+                }
+                else if (arg.startsWith("-diff"))
+                {
+                    diffUrl = new URL(stripFlag(arg));
                 }
                 else if (arg.startsWith("-d"))
                 {
@@ -531,11 +692,45 @@ public class Main
                 {
                 	mseExePath = Paths.get(stripFlag(arg));
                 }
+                else if (arg.startsWith("-where"))
+                {
+                    config.filter(CardQuery.parse(stripFlag(arg)));
+                }
+                else if (arg.startsWith("-snapshot"))
+                {
+                    config.snapshot(Paths.get(stripFlag(arg)));
+                }
+                else if (arg.equals("-changed"))
+                {
+                    changedOnly = true;
+                }
+                else if (arg.equals("-merge"))
+                {
+                    config.merge(true);
+                }
+                else if (arg.startsWith("-art"))
+                {
+                    config.artSource(stripFlag(arg));
+                }
+                else if (arg.startsWith("-timeout"))
+                {
+                    int timeout = Integer.parseInt(stripFlag(arg)) * 1000;
+                    config.networkTimeout(timeout).mseTimeout(timeout);
+                }
+                else if (arg.startsWith("-images"))
+                {
+                    config.imageDirectory(Paths.get(stripFlag(arg)));
+                }
+                else if (arg.startsWith("-imagecache"))
+                {
+                    config.imageCacheSize(Long.parseLong(stripFlag(arg)) * 1024 * 1024);
+                }
                 else
                 {
                     throw new IllegalArgumentException("An invalid argument \"" + arg + "\" was specified on the command line.");
                 }
             }
+            Path mseSetFilePath = defaultOutputDirectory.resolve(defaultFileName);
             if (specifiedMseFileName != null)
             {
                 mseSetFilePath = (specifiedOutputPath != null)? specifiedOutputPath.resolve(specifiedMseFileName) :
@@ -545,17 +740,25 @@ public class Main
             {
                 mseSetFilePath = specifiedOutputPath.resolve(defaultFileName);
             }
+            if (changedOnly)
+            {
+                if (diffUrl == null)
+                {
+                    throw new IllegalArgumentException("The -changed argument needs a -diff argument.");
+                }
+                // don't overwrite the full set with the changed cards
+                String fileName = mseSetFilePath.getFileName().toString().replace(".mse-set", "-changes.mse-set");
+                mseSetFilePath = mseSetFilePath.resolveSibling(fileName);
+            }
             System.out.println("Set output file to " + mseSetFilePath);
         	if (mseExePath == null || !mseExePath.toFile().exists())
         	{
-        		mseExePath = defaultMsePath;
+        		String defaultMse = defaults.getProperty("mse");
+        		mseExePath = (defaultMse != null)? Paths.get(defaultMse) : null;
         	}
+        	config.mseSetFile(mseSetFilePath).mseExe(mseExePath).diffUrl(diffUrl).changedOnly(changedOnly);
         }
-        else
-        {
-            if (debug)
-            	System.out.println("No arguments set, using default values.");
-        }
+        return config.build();
     }
 
     /**
@@ -576,82 +779,347 @@ public class Main
      *    copyright: playtest round 1
      *    artist: footer2
      * </pre>
-     * @param cardDetails
-     * @return
+     * The time fields are the start of the build, so every card of a build
+     * is stamped the same. Only the arguments are used, so cards can be
+     * transformed on many threads at once.
+     *
+     * @param context the build
+     * @param values the parsed card details
+     * @return the card formatted for the set file
      */
-    protected static CharSequence transformCard(String cardDetails)
+    protected static CharSequence transformCard(BuildContext context, List<String> values)
     {
-		if (debug)
-			System.out.println("Transforming downloaded card details: " + cardDetails);
-		else
-            System.out.print(".");
+        return renderCard(toCardFields(context, values), context.getTimestamp());
+    }
 
-        List<String> values = CSVUtils.parseLine(cardDetails);
-        String now = DATE_FORMAT.format(new Date());
-        StringBuilder transformedCard = new StringBuilder("card:\n");
-        transformedCard.append("\thas styling: false\n");
-        transformedCard.append("\tnotes:\n");
-        transformedCard.append("\ttime created: ").append(now).append("\n");
-        transformedCard.append("\ttime modified: ").append(now).append("\n");
-        transformedCard.append("\tattributes: ").append(toAttributes(values.get(COL_TYPE), values.get(COL_FACTION))).append("\n");
-        transformedCard.append("\ttitle: ").append(values.get(COL_TITLE)).append("\n");
-        transformedCard.append("\tscene:\n");
+    /**
+     * Convert the parsed card details into the MSE fields of a card, in the
+     * order they are written to the set file. The "has styling", "notes" and
+     * time fields are left to {@link #renderCard(Map, String)}.
+     *
+     * @param context the build, for the copyright and artwork
+     * @param values the parsed card details
+     * @return the MSE field names mapped to their values
+     */
+    protected static Map<String, String> toCardFields(BuildContext context, List<String> values)
+    {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("attributes", toAttributes(values.get(COL_TYPE), values.get(COL_FACTION)).toString());
+        fields.put("title", values.get(COL_TITLE));
+        fields.put("scene", "");
         if (values.get(COL_FIGHTING).length() > 0)
         {
-            transformedCard.append("\tfighting: ").append(values.get(COL_FIGHTING)).append("\n");
+            fields.put("fighting", values.get(COL_FIGHTING));
         }
         if (values.get(COL_POWER).length() > 0)
         {
-            transformedCard.append("\tpower: ").append(values.get(COL_POWER)).append("\n");
+            fields.put("power", values.get(COL_POWER));
         }
         if (values.get(COL_BODY).length() > 0)
         {
-            transformedCard.append("\tbody: ").append(values.get(COL_BODY)).append("\n");
+            fields.put("body", values.get(COL_BODY));
         }
-        transformedCard.append("\timage:\n");
-        transformedCard.append("\tsubtitle: ").append(values.get(COL_SUBTITLE)).append("\n");
-        transformedCard.append("\trules: ").append(toFormattedText(values.get(COL_RULES))).append("\n");
-        transformedCard.append("\ttag:\n");
+        fields.put("image", context.getCardImage(values.get(COL_TITLE), values.get(COL_SUBTITLE)));
+        fields.put("subtitle", values.get(COL_SUBTITLE));
+        fields.put("rules", toFormattedText(values.get(COL_RULES)).toString());
+        fields.put("tag", "");
         if (values.get(COL_COST).length() > 0)
         {
-            transformedCard.append("\tcost: ").append(toResources(values.get(COL_COST))).append("\n");
+            fields.put("cost", toResources(values.get(COL_COST)).toString());
         }
-        transformedCard.append("\tcopyright: ").append(copyright).append("\n");
+        fields.put("copyright", context.getConfig().getCopyright());
         if (values.get(COL_ARTIST).length() > 0)
         {
-            transformedCard.append("\tartist: ").append(values.get(COL_ARTIST)).append("\n");
+            fields.put("artist", values.get(COL_ARTIST));
         }
         if (values.get(COL_PROVIDES).length() > 0)
         {
-            transformedCard.append("\tresources: ").append(toResources(values.get(COL_PROVIDES))).append("\n");
+            fields.put("resources", toResources(values.get(COL_PROVIDES)).toString());
+        }
+        return fields;
+    }
+
+    /**
+     * Write the fields of a card as a "card:" block of the set file. The
+     * "has styling", "notes" and time fields come first, defaulting to not
+     * styled and created at <code>now</code> if the fields don't have them.
+     * Values spanning several lines are written indented below their name.
+     *
+     * @param fields the MSE field names mapped to their values
+     * @param now the formatted time to use for new cards
+     * @return the card formatted for the set file
+     */
+    protected static CharSequence renderCard(Map<String, String> fields, String now)
+    {
+        return renderCard(fields, now, Collections.<String, String> emptyMap());
+    }
+
+    /**
+     * Write the fields of a card as a "card:" block of the set file like
+     * {@link #renderCard(Map, String)}, except that the fields in
+     * <code>lines</code> are written as those lines, so that a field read
+     * from a set file, such as a styling block, is written back as it was
+     * read.
+     *
+     * @param fields the MSE field names mapped to their values
+     * @param now the formatted time to use for new cards
+     * @param lines field names mapped to the lines to write for them, each
+     *            ending with a line feed
+     * @return the card formatted for the set file
+     */
+    protected static CharSequence renderCard(Map<String, String> fields, String now, Map<String, String> lines)
+    {
+        StringBuilder transformedCard = new StringBuilder("card:\n");
+        appendField(transformedCard, "has styling", getOrDefault(fields, "has styling", "false"), lines);
+        appendField(transformedCard, "notes", getOrDefault(fields, "notes", ""), lines);
+        appendField(transformedCard, "time created", getOrDefault(fields, "time created", now), lines);
+        appendField(transformedCard, "time modified", getOrDefault(fields, "time modified", now), lines);
+        for (Map.Entry<String, String> field : fields.entrySet())
+        {
+            if (!HEADER_FIELDS.contains(field.getKey()))
+            {
+                appendField(transformedCard, field.getKey(), field.getValue(), lines);
+            }
         }
         return transformedCard;
     }
 
+    private static void appendField(StringBuilder card, String name, String value, Map<String, String> lines)
+    {
+        String read = lines.get(name);
+        if (read != null)
+        {
+            card.append(read);
+            return;
+        }
+        card.append('\t').append(name).append(':');
+        if (value == null || value.isEmpty())
+        {
+            card.append('\n');
+        }
+        else if (value.indexOf('\n') < 0)
+        {
+            card.append(' ').append(value).append('\n');
+        }
+        else
+        {
+            card.append('\n');
+            for (String line : value.split("\n", -1))
+            {
+                card.append("\t\t").append(line).append('\n');
+            }
+        }
+    }
+
+    private static String getOrDefault(Map<String, String> fields, String name, String defaultValue)
+    {
+        String value = fields.get(name);
+        return (value == null)? defaultValue : value;
+    }
+
 	/**
-     * Using the input values, download the HTTP contents as a string,
-     * parsing the content, transforming it, and return the formatted body of
-     * the set file. Each line is transformed by {@link #transformCard(String)}.
+     * Transform the records into the formatted body of the set file, each
+     * by {@link #transformCard(BuildContext, List)}.
      *
-     * @throws IOException if something bad happens
+     * @param context the build
+     * @param records the cards from {@link #readSelectedRecords(BuildContext)}
+     * @return the cards formatted for the set file
      */
-    protected static String transformInput() throws IOException
+    protected static String transformInput(BuildContext context, List<List<String>> records)
     {
-        InputStream is = null;
+        boolean debug = context.getConfig().isDebug();
         StringBuilder formattedContents = new StringBuilder();
+        for (int i = 0; i < records.size(); i++)
+        {
+            context.checkCancelled();
+            List<String> values = records.get(i);
+            if (debug)
+                context.getListener().message("Transforming downloaded card details: " + values);
+            formattedContents.append(transformCard(context, values));
+            context.getListener().progress(BuildListener.Stage.TRANSFORM, i + 1, records.size());
+        }
+        return formattedContents.toString();
+    }
+
+    /**
+     * Merge the records into the existing mse-set file of the build with
+     * {@link MseSet#merge(List, String)}.
+     *
+     * @param context the build
+     * @param records the cards from {@link #readSelectedRecords(BuildContext)}
+     * @return the merged set contents
+     * @throws IOException if reading the existing set fails
+     */
+    protected static String mergeInput(BuildContext context, List<List<String>> records) throws IOException
+    {
+        boolean debug = context.getConfig().isDebug();
+        List<Map<String, String>> cards = new ArrayList<>();
+        for (List<String> values : records)
+        {
+            context.checkCancelled();
+            if (debug)
+                context.getListener().message("Merging downloaded card details: " + values);
+            cards.add(toCardFields(context, values));
+            context.getListener().progress(BuildListener.Stage.MERGE, cards.size(), records.size());
+        }
+
+        Path mseSetFilePath = context.getConfig().getMseSetFile();
+        context.getListener().message("Merging into existing mse-set file: " + mseSetFilePath);
+        MseSet set = MseSet.read(mseSetFilePath);
+        set.merge(cards, context.getTimestamp());
+        context.getListener().message("Changed " + set.getUpdated() + " and added " + set.getAdded() + " cards.");
+        return set.toText(context.getTimestamp());
+    }
+
+    /**
+     * Find and scale the artwork of the cards if the build has an
+     * {@link BuildConfig#getArtSource()}.
+     *
+     * @param context the build
+     * @param records the cards to find artwork for
+     * @return the build with the artwork of the cards
+     * @throws IOException if the artwork source or cache can't be used
+     */
+    protected static BuildContext prepareArtwork(BuildContext context, List<List<String>> records) throws IOException
+    {
+        String artSource = context.getConfig().getArtSource();
+        if (artSource == null)
+        {
+            return context;
+        }
+        context.getListener().message("Preparing artwork from " + artSource);
+        List<String[]> titles = new ArrayList<>(records.size());
+        for (List<String> values : records)
+        {
+            titles.add(new String[] { values.get(COL_TITLE), values.get(COL_SUBTITLE) });
+        }
+        Path cache = Paths.get(System.getProperty("java.io.tmpdir"), "shadowfist-art");
+        MemoryBudget memory = context.getConfig().getArtworkMemory();
+        ArtworkProcessor processor = new ArtworkProcessor(artSource, cache, (memory != null)? memory
+            : MemoryBudget.ofHeap(), context);
+        Map<String, Path> cardImages = processor.process(titles);
+        context.getListener().message("Found artwork for " + cardImages.size() + " of " + records.size() + " cards.");
+        return context.withCardImages(cardImages);
+    }
+
+    /**
+     * Read the records at the input URL of the build and return those
+     * selected by {@link #selectCards(BuildContext, List)}. The selected
+     * records are checked by
+     * {@link #validateRecords(BuildContext, List, int[])} and blank rows are
+     * dropped. Once they pass, a snapshot of the records is written if the
+     * build has a {@link BuildConfig#getSnapshot()}, so a rejected CSV file
+     * never replaces the last good one.
+     *
+     * @param context the build
+     * @return the selected records in spreadsheet order
+     * @throws IOException if the download fails
+     * @throws IllegalStateException if the records aren't valid
+     */
+    protected static List<List<String>> readSelectedRecords(BuildContext context) throws IOException
+    {
+        URL inputUrl = context.getConfig().getInputUrl();
+        Path snapshotPath = context.getConfig().getSnapshot();
+        List<List<String>> records = readRecords(context, inputUrl);
+        BitSet selected = selectCards(context, records);
+
+        List<List<String>> selectedRecords = new ArrayList<>(selected.cardinality());
+        int[] rows = new int[selected.cardinality()];
+        for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1))
+        {
+            rows[selectedRecords.size()] = i + 2; // after the header, from 1
+            selectedRecords.add(records.get(i));
+        }
+        validateRecords(context, selectedRecords, rows);
+        if (snapshotPath != null && !isSnapshot(inputUrl))
+        {
+            context.getListener().message("Writing snapshot file: " + snapshotPath);
+            CardSnapshot.write(records, snapshotPath);
+        }
+
+        List<List<String>> cards = new ArrayList<>(selectedRecords.size());
+        for (List<String> values : selectedRecords)
+        {
+            if (!CardValidator.isBlank(values))
+            {
+                cards.add(values);
+            }
+        }
+        return cards;
+    }
+
+    /**
+     * Check the records with {@link CardValidator}, print the report and
+     * write it as JSON next to the set file. This happens before anything
+     * slow like artwork or MSE runs, so a bad row fails the build straight
+     * away along with every other problem found.
+     *
+     * @param context the build
+     * @param records the records to check
+     * @param rows the spreadsheet row of each record
+     * @throws IOException if the report can't be written
+     * @throws IllegalStateException if any errors were found
+     */
+    protected static void validateRecords(BuildContext context, List<List<String>> records, int[] rows)
+        throws IOException
+    {
+        Path mseSetFilePath = context.getConfig().getMseSetFile();
+        long start = System.nanoTime();
+        ValidationReport report = CardValidator.validate(String.valueOf(context.getConfig().getInputUrl()), records,
+            rows);
+        if (context.getConfig().isDebug())
+            context.getListener().message("Validated " + records.size() + " cards in " + (System.nanoTime() - start) / 1000000 + "ms");
+        StringBuilder printed = new StringBuilder();
+        report.print(printed);
+        context.getListener().message(printed.substring(0, printed.length() - 1));
+
+        String reportName = mseSetFilePath.getFileName().toString().replace("mse-set", "validation.json");
+        Path reportFile = mseSetFilePath.resolveSibling(reportName);
+        Files.createDirectories(reportFile.toAbsolutePath().getParent());
+        Files.write(reportFile, report.toJson().getBytes(StandardCharsets.UTF_8));
+        if (!report.isValid())
+        {
+            throw new IllegalStateException("The cards have " + report.getErrorCount() + " errors, see " + reportFile);
+        }
+    }
+
+    /**
+     * Download the CSV file from the URL and parse each line after the
+     * header into a list of column values. If the URL is a local
+     * {@link CardSnapshot} it is mapped instead of parsed.
+     *
+     * @param context the build
+     * @param url the CSV file or snapshot location
+     * @return the parsed card records in spreadsheet order
+     * @throws IOException if the download fails
+     */
+    protected static List<List<String>> readRecords(BuildContext context, URL url) throws IOException
+    {
+        if (isSnapshot(url))
+        {
+            Path snapshot = toLocalPath(url);
+            long start = System.nanoTime();
+            List<List<String>> records = CardSnapshot.read(snapshot);
+            context.getListener().message("Opened snapshot " + snapshot + " with " + records.size() + " cards in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+            return records;
+        }
+
+        InputStream is = null;
+        List<List<String>> records = new ArrayList<>();
         try
         {
             String line = null;
-            System.out.println("Opening connection to url: " + inputUrl);
-            is = inputUrl.openStream();
+            context.getListener().message("Opening connection to url: " + url);
+            is = openStream(context, url);
             BufferedReader reader = new BufferedReader(new InputStreamReader(is));
 
             reader.readLine();// skip header line
             while ((line = reader.readLine()) != null)
             {
-                formattedContents.append(transformCard(line));
+                context.checkCancelled();
+                records.add(CSVUtils.parseLine(line));
             }
-            System.out.println("");
         }
         finally
         {
@@ -660,50 +1128,299 @@ public class Main
                 is.close();
             }
         }
-        return formattedContents.toString();
+        return records;
     }
 
     /**
-     * Create the mse-set (zip) file at the location {@link #mseSetFilePath}.
-     * Overwrites the file if needed. Creates any directories if needed.
+     * Read the MSE fields of every card at the URL, which may be a CSV
+     * file, a {@link CardSnapshot} or an mse-set file.
      *
-     * @param set the set contents
-     * @throws IOException if file can't be created or zipping fails.
+     * @param context the build
+     * @param url the location of the cards
+     * @return the fields of each card
+     * @throws IOException if reading fails
      */
-    protected static void writeMseFile(String setData) throws IOException
+    protected static List<Map<String, String>> readCardFields(BuildContext context, URL url) throws IOException
     {
-        if (mseSetFilePath == null)
+        Path local = toLocalPath(url);
+        boolean mseSet = (local != null)? isZip(local) : url.getPath().endsWith(".mse-set");
+        if (mseSet)
         {
-            throw new IllegalStateException("The output path is not valid or was not determined correctly.");
+            context.getListener().message("Reading mse-set file: " + url);
+            try (InputStream is = (local != null)? new FileInputStream(local.toFile()) : openStream(context, url))
+            {
+                return MseSetReader.readCards(is);
+            }
         }
-        // check if file exists, delete if needed
-        File outputFile = mseSetFilePath.toFile();
-        if (outputFile.exists())
+
+        List<List<String>> records = readRecords(context, url);
+        List<Map<String, String>> cards = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++)
         {
-            if (debug)
-            	System.out.println("Deleting existing mse-set file...");
-            outputFile.delete();
+            List<String> values = records.get(i);
+            if (values.size() <= COL_ARTIST)
+            {
+                if (!CardValidator.isBlank(values))
+                    context.getListener().message("Skipping row " + (i + 2) + " of " + url + ", it has too few columns.");
+                continue;
+            }
+            cards.add(toCardFields(context, values));
         }
+        return cards;
+    }
+
+    /**
+     * Compare the cards at the {@link BuildConfig#getDiffUrl()} of the build
+     * with those at its input URL, print the changes and write them to a
+     * text file next to the set file. If the build is
+     * {@link BuildConfig#isChangedOnly()}, a set and PDF of the changed and
+     * added cards are built.
+     *
+     * @param context the build
+     * @return the changelog and any set and PDF files made
+     * @throws IOException if reading or writing fails
+     */
+    protected static BuildResult compareVersions(BuildContext context) throws IOException
+    {
+        BuildConfig config = context.getConfig();
+        URL diffUrl = config.getDiffUrl();
+        URL inputUrl = config.getInputUrl();
+        Path mseSetFilePath = config.getMseSetFile();
+        List<Map<String, String>> oldCards = readCardFields(context, diffUrl);
+        List<Map<String, String>> newCards = readCardFields(context, inputUrl);
+
+        long start = System.nanoTime();
+        List<CardDiff.Change> changes = CardDiff.compare(oldCards, newCards);
+        if (config.isDebug())
+            context.getListener().message("Compared " + oldCards.size() + " to " + newCards.size() + " cards in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+
+        StringBuilder changelog = new StringBuilder();
+        changelog.append("Changes from ").append(diffUrl).append(" to ").append(inputUrl).append("\n");
+        CardDiff.writeChangelog(changes, changelog);
+        context.getListener().message(changelog.substring(0, changelog.length() - 1));
+
+        String changelogName = mseSetFilePath.getFileName().toString().replace("mse-set", "changes.txt");
+        Path changelogFile = mseSetFilePath.resolveSibling(changelogName);
+        Files.createDirectories(changelogFile.toAbsolutePath().getParent());
+        context.getListener().message("Writing changelog file: " + changelogFile);
+        Files.write(changelogFile, changelog.toString().getBytes(StandardCharsets.UTF_8));
+
+        if (config.isChangedOnly())
+        {
+            StringBuilder cardContents = new StringBuilder();
+            for (CardDiff.Change change : changes)
+            {
+                if (change.getKind() != CardDiff.Kind.REMOVED)
+                {
+                    cardContents.append(renderCard(change.getCard(), context.getTimestamp()));
+                }
+            }
+            String setData = buildSetFile(cardContents.toString());
+            context.getSink().setText(setData);
+            writeMseFile(context, setData, null);
+            Path pdfFile = exportPdf(context);
+            return new BuildResult(mseSetFilePath, pdfFile, changelogFile, changes.size());
+        }
+        return new BuildResult(null, null, changelogFile, changes.size());
+    }
+
+    /**
+     * Open the URL with the connect and read timeouts of the build, so a
+     * server that stops answering fails the build instead of hanging it.
+     *
+     * @param context the build
+     * @param url the URL
+     * @return the contents
+     * @throws IOException if the URL can't be opened in time
+     */
+    protected static InputStream openStream(BuildContext context, URL url) throws IOException
+    {
+        context.checkCancelled();
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(context.getConfig().getNetworkTimeout());
+        connection.setReadTimeout(context.getConfig().getNetworkTimeout());
+        return connection.getInputStream();
+    }
+
+    /**
+     * Return true if the URL is a local {@link CardSnapshot} file.
+     *
+     * @param url the URL
+     * @return true if it is a snapshot
+     * @throws IOException if the file can't be read
+     */
+    private static boolean isSnapshot(URL url) throws IOException
+    {
+        Path local = toLocalPath(url);
+        return local != null && CardSnapshot.isSnapshot(local);
+    }
+
+    /**
+     * Return true if the file starts with the zip local file header
+     * signature, as mse-set files do.
+     *
+     * @param file the file to check
+     * @return true if it is a zip file
+     * @throws IOException if the file can't be read
+     */
+    private static boolean isZip(Path file) throws IOException
+    {
+        if (!Files.isRegularFile(file))
+        {
+            return false;
+        }
+        try (InputStream in = new FileInputStream(file.toFile()))
+        {
+            return in.read() == 'P' && in.read() == 'K' && in.read() == 3 && in.read() == 4;
+        }
+    }
+
+    /**
+     * Return the file a "file:" URL points to, or null for any other URL.
+     *
+     * @param url the URL
+     * @return the local file or null
+     */
+    private static Path toLocalPath(URL url)
+    {
+        if (url == null || !"file".equalsIgnoreCase(url.getProtocol()))
+        {
+            return null;
+        }
+        try
+        {
+            return Paths.get(url.toURI());
+        }
+        catch (URISyntaxException | IllegalArgumentException e)
+        {
+            return Paths.get(url.getPath());
+        }
+    }
+
+    /**
+     * Determine which of the records should be built. If the build has no
+     * {@link BuildConfig#getFilter()} every record is selected, otherwise
+     * the filter is evaluated against a {@link CardIndex} built over the
+     * records.
+     *
+     * @param context the build
+     * @param records the parsed card records
+     * @return the positions of the selected records
+     */
+    protected static BitSet selectCards(BuildContext context, List<List<String>> records)
+    {
+        CardQuery filter = context.getConfig().getFilter();
+        if (filter == null)
+        {
+            BitSet all = new BitSet(records.size());
+            all.set(0, records.size());
+            return all;
+        }
+        long start = System.nanoTime();
+        CardIndex index = new CardIndex(records);
+        long indexed = System.nanoTime();
+        BitSet selected = filter.evaluate(index);
+        long evaluated = System.nanoTime();
+        if (context.getConfig().isDebug())
+        {
+            context.getListener().message("Indexed " + records.size() + " cards in " + (indexed - start) / 1000 + "us, evaluated "
+                + filter + " in " + (evaluated - indexed) / 1000 + "us");
+        }
+        context.getListener().message("Selected " + selected.cardinality() + " of " + records.size() + " cards.");
+        return selected;
+    }
+
+    /**
+     * Create the mse-set (zip) file of the build with the set contents, the
+     * artwork of the cards, compressed in parallel, and, if
+     * <code>previousSet</code> is given, every
+     * other entry of that file copied over raw, without recompressing,
+     * except for artwork no card uses any more. The
+     * zip is written to a temporary file that then replaces any existing
+     * file, so <code>previousSet</code> may be the output file itself.
+     * Creates any directories if needed.
+     *
+     * @param context the build
+     * @param setData the set contents
+     * @param previousSet an mse-set file to copy images and other entries
+     *            from, or null
+     * @throws IOException if file can't be created or zipping fails.
+     */
+    protected static void writeMseFile(BuildContext context, String setData, Path previousSet) throws IOException
+    {
+        boolean debug = context.getConfig().isDebug();
+        Path mseSetFilePath = context.getConfig().getMseSetFile();
+        File outputFile = mseSetFilePath.toFile();
         // create any parent directories if needed
         if (!outputFile.getParentFile().exists())
         {
             if (debug)
-            	System.out.println("Creating directory " + outputFile.getParentFile() + "...");
+            	context.getListener().message("Creating directory " + outputFile.getParentFile() + "...");
             outputFile.getParentFile().mkdirs();
         }
 
         // create zip
-        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(outputFile));
+        Path tempFile = Files.createTempFile(mseSetFilePath.getParent(), outputFile.getName(), ".tmp");
+        try
+        {
+            try (MseArchiveWriter out = new MseArchiveWriter(new FileOutputStream(tempFile.toFile()),
+                ForkJoinPool.commonPool()))
+            {
+                // create set entry, compressed fast as it's rewritten every build
+                out.addEntry(MseSetReader.SET_ENTRY, setData.getBytes(StandardCharsets.UTF_8), Deflater.BEST_SPEED);
+
+                // add artwork, already compressed as JPG
+                for (Path image : new HashSet<>(context.getCardImages().values()))
+                {
+                    out.addStoredEntry(image.getFileName().toString(), Files.readAllBytes(image));
+                }
 
-        // create set entry
-        out.putNextEntry(new ZipEntry("set"));
+                if (previousSet != null)
+                {
+                    Set<String> exclude = unusedArtwork(previousSet, setData);
+                    exclude.add(MseSetReader.SET_ENTRY);
+                    List<String> copied = out.copyRawEntries(previousSet, exclude);
+                    if (debug)
+                        context.getListener().message("Copied entries " + copied + " from " + previousSet);
+                }
+            }
 
-        // write entry
-        byte[] data = setData.getBytes("UTF-8");
-        out.write(data, 0, data.length);
-        out.flush();
-        out.closeEntry();
-        out.close();
+            // replace the file if it exists
+            if (outputFile.exists() && debug)
+            	context.getListener().message("Replacing existing mse-set file...");
+            Files.move(tempFile, mseSetFilePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Return the artwork entries of the mse-set file that the set contents
+     * no longer use.
+     *
+     * @param mseSetFile the mse-set file
+     * @param setData the new set contents
+     * @return the names of the unused artwork entries
+     * @throws IOException if the file can't be read
+     */
+    protected static Set<String> unusedArtwork(Path mseSetFile, String setData) throws IOException
+    {
+        Set<String> unused = new HashSet<>();
+        try (ZipFile zip = new ZipFile(mseSetFile.toFile()))
+        {
+            for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();)
+            {
+                String name = entries.nextElement().getName();
+                if (ArtworkProcessor.isArtworkEntry(name) && !setData.contains(name))
+                {
+                    unused.add(name);
+                }
+            }
+        }
+        return unused;
     }
 
     /**
@@ -714,7 +1431,11 @@ public class Main
      */
     private static String stripFlag(String arg)
     {
-        if (arg.startsWith("-u") || arg.startsWith("-d") || arg.startsWith("-f"))
+        if (arg.startsWith("-diff"))
+        {
+            arg = arg.substring(5);
+        }
+        else if (arg.startsWith("-u") || arg.startsWith("-d") || arg.startsWith("-f"))
         {
             arg = arg.substring(2);
         }
@@ -722,6 +1443,38 @@ public class Main
         {
             arg = arg.substring(4);
         }
+        else if (arg.startsWith("-where"))
+        {
+            arg = arg.substring(6);
+        }
+        else if (arg.startsWith("-snapshot"))
+        {
+            arg = arg.substring(9);
+        }
+        else if (arg.startsWith("-serve"))
+        {
+            arg = arg.substring(6);
+        }
+        else if (arg.startsWith("-hosts"))
+        {
+            arg = arg.substring(6);
+        }
+        else if (arg.startsWith("-timeout"))
+        {
+            arg = arg.substring(8);
+        }
+        else if (arg.startsWith("-art"))
+        {
+            arg = arg.substring(4);
+        }
+        else if (arg.startsWith("-images"))
+        {
+            arg = arg.substring(7);
+        }
+        else if (arg.startsWith("-imagecache"))
+        {
+            arg = arg.substring(11);
+        }
         if (arg.startsWith("="))
         {
             arg = arg.substring(1);
@@ -799,4 +1552,42 @@ public class Main
         return builder.toString();
     }
 
+
+    /**
+     * Prints the messages of a build, and a dot for each step of progress
+     * unless debugging, when the messages say what each step did.
+     */
+    private static class ConsoleListener implements BuildListener
+    {
+        private final boolean debug;
+        private boolean dots;
+
+        ConsoleListener(boolean debug)
+        {
+            this.debug = debug;
+        }
+
+        @Override
+        public synchronized void message(String message)
+        {
+            if (dots)
+            {
+                System.out.println("");
+                dots = false;
+            }
+            System.out.println(message);
+        }
+
+        @Override
+        public synchronized void progress(Stage stage, int done, int total)
+        {
+            if (!debug)
+            {
+                System.out.print(".");
+                dots = done < total;
+                if (!dots)
+                    System.out.println("");
+            }
+        }
+    }
 }
@@ -0,0 +1,93 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * A number of bytes that work held in memory at once must stay within,
+ * such as the decoded pixels of the artwork being scaled. Work takes its
+ * share before it starts and gives it back when done, waiting while the
+ * budget is used up. One budget can be shared by any number of builds, so
+ * builds running at the same time stay within it together:
+ * <pre>
+ * int share = budget.acquire(bytes);
+ * try
+ * {
+ *     ...
+ * }
+ * finally
+ * {
+ *     budget.release(share);
+ * }
+ * </pre>
+ * The budget is counted in kilobytes, and a share is never more than the
+ * whole budget, so one large piece of work can always run on its own.
+ *
+ * @author cgreene
+ */
+public final class MemoryBudget
+{
+    private final int kilobytes;
+    private final Semaphore available;
+
+    /**
+     * @param bytes the size of the budget
+     */
+    public MemoryBudget(long bytes)
+    {
+        this.kilobytes = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / 1024));
+        this.available = new Semaphore(kilobytes, true);
+    }
+
+    /**
+     * Return a budget of a quarter of the heap the JVM may use.
+     *
+     * @return the budget
+     */
+    public static MemoryBudget ofHeap()
+    {
+        return new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Take a share of the budget, waiting until it's available.
+     *
+     * @param bytes the bytes the work will hold
+     * @return the share taken, to give to {@link #release(int)}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int acquire(long bytes) throws InterruptedException
+    {
+        int share = (int) Math.min(kilobytes, Math.max(1, bytes / 1024));
+        available.acquire(share);
+        return share;
+    }
+
+    /**
+     * Give back a share taken with {@link #acquire(long)}.
+     *
+     * @param share the share
+     */
+    public void release(int share)
+    {
+        available.release(share);
+    }
+
+    /**
+     * @return the size of the budget in bytes
+     */
+    public long getBytes()
+    {
+        return kilobytes * 1024L;
+    }
+
+    /**
+     * @return the bytes not taken at the moment
+     */
+    public long getAvailableBytes()
+    {
+        return available.availablePermits() * 1024L;
+    }
+}
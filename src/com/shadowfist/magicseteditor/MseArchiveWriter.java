@@ -0,0 +1,544 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the zip file of an mse-set. Unlike {@link java.util.zip.ZipOutputStream}
+ * it can copy entries from an existing mse-set without inflating and
+ * deflating them again: the compressed bytes are copied as they are along
+ * with their CRC and sizes. That keeps images and other files a designer
+ * added in MSE exactly as they were when the set is regenerated.
+ * <p>
+ * Every entry is compressed before its local header is written, so headers
+ * always carry the real sizes and no data descriptors are needed. Zip64 is
+ * not supported, which limits an archive to 65535 entries and 4GB.
+ * <p>
+ * Given an executor, entries are compressed on it in parallel while the
+ * caller adds more, and written in the order they were added as each one
+ * finishes, so the archive is the same as one written on one thread. The
+ * writer itself is not thread safe; add entries from one thread.
+ *
+ * @author cgreene
+ */
+public class MseArchiveWriter implements Closeable
+{
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_SIZE = 22;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int VERSION = 20;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    /** The most entries compressed ahead of being written, to bound memory. */
+    private static final int MAX_PENDING = 64;
+
+    /**
+     * The details of an entry that the central directory repeats.
+     */
+    private static class Entry
+    {
+        byte[] name;
+        int flags;
+        int method;
+        int time;
+        int date;
+        int crc;
+        long compressedSize;
+        long size;
+        long offset;
+    }
+
+    /**
+     * An added entry, compressed and ready to be written.
+     */
+    private static class Compressed
+    {
+        String name;
+        int method;
+        int time;
+        int date;
+        CRC32 crc;
+        ByteArrayOutputStream deflated;
+        byte[] stored;
+        long size;
+    }
+
+    private final OutputStream out;
+    private final Executor executor;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final Set<String> added = new HashSet<>();
+    private final Deque<FutureTask<Compressed>> pending = new ArrayDeque<>();
+    private long offset;
+
+    /**
+     * Create a writer that writes the archive to the stream, compressing
+     * entries on the calling thread. The stream is closed when the writer
+     * is.
+     *
+     * @param out where to write the archive
+     */
+    public MseArchiveWriter(OutputStream out)
+    {
+        this(out, null);
+    }
+
+    /**
+     * Create a writer that writes the archive to the stream, compressing
+     * entries on the executor. The stream is closed when the writer is.
+     *
+     * @param out where to write the archive
+     * @param executor where to compress entries, or null for the calling
+     *            thread
+     */
+    public MseArchiveWriter(OutputStream out, Executor executor)
+    {
+        this.out = new BufferedOutputStream(out, 64 * 1024);
+        this.executor = executor;
+    }
+
+    /**
+     * Deflate the data and add it as an entry.
+     *
+     * @param name the entry name, e.g. "set"
+     * @param data the uncompressed entry contents
+     * @throws IOException if writing fails or the name was already added
+     */
+    public void addEntry(String name, byte[] data) throws IOException
+    {
+        addEntry(name, data, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Add the data as an entry without compressing it. Used for JPG images,
+     * which deflate would only make slower to write and read.
+     *
+     * @param name the entry name, e.g. "image1"
+     * @param data the entry contents
+     * @throws IOException if writing fails or the name was already added
+     */
+    public void addStoredEntry(String name, byte[] data) throws IOException
+    {
+        addEntry(name, data, Deflater.NO_COMPRESSION);
+    }
+
+    /**
+     * Add the data as an entry deflated at the level, or stored if the level
+     * is {@link Deflater#NO_COMPRESSION}. The data must not be changed until
+     * the writer is closed.
+     *
+     * @param name the entry name
+     * @param data the uncompressed entry contents
+     * @param level the {@link Deflater} compression level, e.g.
+     *            {@link Deflater#BEST_SPEED}
+     * @throws IOException if writing fails or the name was already added
+     */
+    public void addEntry(final String name, final byte[] data, final int level) throws IOException
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+        {
+            throw new IllegalArgumentException("Invalid compression level " + level + " for entry " + name);
+        }
+        if (names.contains(name) || !added.add(name))
+        {
+            throw new IOException("The mse-set already has an entry named " + name);
+        }
+        final long now = System.currentTimeMillis();
+        FutureTask<Compressed> task = new FutureTask<>(new Callable<Compressed>()
+        {
+            @Override
+            public Compressed call()
+            {
+                return compress(name, data, level, now);
+            }
+        });
+        pending.add(task);
+        if (executor != null)
+        {
+            executor.execute(task);
+        }
+        else
+        {
+            task.run();
+        }
+
+        // write what is done, waiting if too far ahead
+        while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > MAX_PENDING))
+        {
+            writeNext();
+        }
+    }
+
+    private static Compressed compress(String name, byte[] data, int level, long time)
+    {
+        Compressed entry = new Compressed();
+        entry.name = name;
+        int[] timeAndDate = toDosTime(time);
+        entry.time = timeAndDate[0];
+        entry.date = timeAndDate[1];
+        entry.crc = new CRC32();
+        entry.crc.update(data, 0, data.length);
+        entry.size = data.length;
+        if (level == Deflater.NO_COMPRESSION)
+        {
+            entry.method = STORED;
+            entry.stored = data;
+            return entry;
+        }
+
+        entry.method = DEFLATED;
+        Deflater deflater = new Deflater(level, true);
+        entry.deflated = new ByteArrayOutputStream(data.length / 2 + 64);
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[16 * 1024];
+            while (!deflater.finished())
+            {
+                int n = deflater.deflate(buffer);
+                entry.deflated.write(buffer, 0, n);
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+        return entry;
+    }
+
+    /**
+     * Write the oldest pending entry, compressing it on this thread if the
+     * executor hasn't started it yet.
+     */
+    private void writeNext() throws IOException
+    {
+        FutureTask<Compressed> task = pending.poll();
+        // does nothing if already run or running
+        task.run();
+        Compressed compressed;
+        try
+        {
+            compressed = task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing the mse-set.", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Could not compress the mse-set entry.", e.getCause());
+        }
+
+        added.remove(compressed.name);
+        Entry entry = newEntry(compressed.name);
+        entry.method = compressed.method;
+        entry.time = compressed.time;
+        entry.date = compressed.date;
+        entry.crc = (int) compressed.crc.getValue();
+        entry.size = compressed.size;
+        if (compressed.method == STORED)
+        {
+            entry.compressedSize = compressed.stored.length;
+            writeLocalHeader(entry);
+            out.write(compressed.stored);
+        }
+        else
+        {
+            entry.compressedSize = compressed.deflated.size();
+            writeLocalHeader(entry);
+            compressed.deflated.writeTo(out);
+        }
+        offset += entry.compressedSize;
+    }
+
+    /**
+     * Write every pending entry.
+     */
+    private void writePending() throws IOException
+    {
+        while (!pending.isEmpty())
+        {
+            writeNext();
+        }
+    }
+
+    /**
+     * Copy the entries of an existing zip file into this archive without
+     * recompressing them. Entries in <code>exclude</code> or already added
+     * to this archive are skipped.
+     *
+     * @param source the zip file to copy from
+     * @param exclude the names of entries not to copy
+     * @return the names of the entries copied
+     * @throws IOException if the source can't be read or isn't a zip file
+     */
+    public List<String> copyRawEntries(Path source, Collection<String> exclude) throws IOException
+    {
+        writePending();
+        List<String> copied = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ))
+        {
+            ByteBuffer central = readCentralDirectory(channel, source);
+            while (central.remaining() >= CENTRAL_HEADER_SIZE && central.getInt(central.position()) == CENTRAL_HEADER)
+            {
+                int start = central.position();
+                int flags = central.getShort(start + 8) & 0xffff;
+                int method = central.getShort(start + 10) & 0xffff;
+                int time = central.getShort(start + 12) & 0xffff;
+                int date = central.getShort(start + 14) & 0xffff;
+                int crc = central.getInt(start + 16);
+                long compressedSize = central.getInt(start + 20) & 0xffffffffL;
+                long size = central.getInt(start + 24) & 0xffffffffL;
+                int nameLength = central.getShort(start + 28) & 0xffff;
+                int extraLength = central.getShort(start + 30) & 0xffff;
+                int commentLength = central.getShort(start + 32) & 0xffff;
+                long localOffset = central.getInt(start + 42) & 0xffffffffL;
+                byte[] nameBytes = new byte[nameLength];
+                central.position(start + CENTRAL_HEADER_SIZE);
+                central.get(nameBytes);
+                central.position(start + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength);
+
+                String name = new String(nameBytes, ((flags & FLAG_UTF8) != 0)? StandardCharsets.UTF_8
+                    : StandardCharsets.ISO_8859_1);
+                if (exclude.contains(name) || names.contains(name))
+                {
+                    continue;
+                }
+
+                // find the data after the local header
+                ByteBuffer local = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, local, localOffset, source);
+                if (local.getInt(0) != LOCAL_HEADER)
+                {
+                    throw new IOException(source + " has a bad local header for entry " + name);
+                }
+                long dataOffset = localOffset + LOCAL_HEADER_SIZE + (local.getShort(26) & 0xffff)
+                    + (local.getShort(28) & 0xffff);
+
+                Entry entry = newEntry(name);
+                entry.flags = (flags & ~FLAG_DATA_DESCRIPTOR) | FLAG_UTF8;
+                entry.method = method;
+                entry.time = time;
+                entry.date = date;
+                entry.crc = crc;
+                entry.compressedSize = compressedSize;
+                entry.size = size;
+                writeLocalHeader(entry);
+                copy(channel, dataOffset, compressedSize, source);
+                copied.add(name);
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Write the central directory and close the stream.
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            writePending();
+            if (entries.size() > 0xffff || offset > 0xffffffffL)
+            {
+                throw new IOException("The mse-set has too many or too large entries for a zip file without Zip64.");
+            }
+            long centralOffset = offset;
+            for (Entry entry : entries)
+            {
+                ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + entry.name.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(CENTRAL_HEADER);
+                header.putShort((short) VERSION); // made by
+                header.putShort((short) VERSION); // needed to extract
+                header.putShort((short) entry.flags);
+                header.putShort((short) entry.method);
+                header.putShort((short) entry.time);
+                header.putShort((short) entry.date);
+                header.putInt(entry.crc);
+                header.putInt((int) entry.compressedSize);
+                header.putInt((int) entry.size);
+                header.putShort((short) entry.name.length);
+                header.putShort((short) 0); // extra
+                header.putShort((short) 0); // comment
+                header.putShort((short) 0); // disk number
+                header.putShort((short) 0); // internal attributes
+                header.putInt(0); // external attributes
+                header.putInt((int) entry.offset);
+                header.put(entry.name);
+                out.write(header.array());
+                offset += header.capacity();
+            }
+            ByteBuffer end = ByteBuffer.allocate(END_OF_CENTRAL_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(END_OF_CENTRAL);
+            end.putShort((short) 0); // this disk
+            end.putShort((short) 0); // disk with central directory
+            end.putShort((short) entries.size());
+            end.putShort((short) entries.size());
+            end.putInt((int) (offset - centralOffset));
+            end.putInt((int) centralOffset);
+            end.putShort((short) 0); // comment
+            out.write(end.array());
+            out.flush();
+        }
+        finally
+        {
+            for (FutureTask<Compressed> task : pending)
+            {
+                task.cancel(false);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+    private Entry newEntry(String name) throws IOException
+    {
+        if (!names.add(name))
+        {
+            throw new IOException("The mse-set already has an entry named " + name);
+        }
+        Entry entry = new Entry();
+        entry.name = name.getBytes(StandardCharsets.UTF_8);
+        entry.flags = FLAG_UTF8;
+        entry.offset = offset;
+        entries.add(entry);
+        return entry;
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException
+    {
+        if (entry.compressedSize > 0xffffffffL || entry.size > 0xffffffffL)
+        {
+            throw new IOException("The mse-set entry " + new String(entry.name, StandardCharsets.UTF_8)
+                + " is too large for a zip file without Zip64.");
+        }
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + entry.name.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER);
+        header.putShort((short) VERSION);
+        header.putShort((short) entry.flags);
+        header.putShort((short) entry.method);
+        header.putShort((short) entry.time);
+        header.putShort((short) entry.date);
+        header.putInt(entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) entry.name.length);
+        header.putShort((short) 0); // extra
+        header.put(entry.name);
+        out.write(header.array());
+        offset += header.capacity();
+    }
+
+    private void copy(FileChannel channel, long position, long length, Path source) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, 64 * 1024));
+        long end = position + length;
+        while (position < end)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            readFully(channel, buffer, position, source);
+            out.write(buffer.array(), 0, buffer.limit());
+            position += buffer.limit();
+        }
+        offset += length;
+    }
+
+    /**
+     * Find the end of central directory record, which is the last thing in
+     * the file apart from an optional comment, and read the directory.
+     */
+    private static ByteBuffer readCentralDirectory(FileChannel channel, Path source) throws IOException
+    {
+        long size = channel.size();
+        int tailLength = (int) Math.min(size, END_OF_CENTRAL_SIZE + 0xffff);
+        ByteBuffer tail = ByteBuffer.allocate(tailLength).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, tail, size - tailLength, source);
+        for (int i = tailLength - END_OF_CENTRAL_SIZE; i >= 0; i--)
+        {
+            if (tail.getInt(i) == END_OF_CENTRAL)
+            {
+                long centralSize = tail.getInt(i + 12) & 0xffffffffL;
+                long centralOffset = tail.getInt(i + 16) & 0xffffffffL;
+                if (centralOffset + centralSize > size)
+                {
+                    throw new IOException(source + " has a corrupt central directory.");
+                }
+                ByteBuffer central = ByteBuffer.allocate((int) centralSize).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, central, centralOffset, source);
+                central.flip();
+                return central;
+            }
+        }
+        throw new IOException(source + " is not a zip file.");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, Path source) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+            {
+                throw new IOException(source + " ended unexpectedly.");
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Convert a time to the MS-DOS time and date fields used by zip files.
+     */
+    private static int[] toDosTime(long millis)
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        int year = Math.max(calendar.get(Calendar.YEAR), 1980);
+        int time = (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5)
+            | (calendar.get(Calendar.SECOND) >> 1);
+        int date = ((year - 1980) << 9) | ((calendar.get(Calendar.MONTH) + 1) << 5)
+            | calendar.get(Calendar.DAY_OF_MONTH);
+        return new int[] { time, date };
+    }
+}
@@ -0,0 +1,257 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the MSE command line interface, <code>mse --cli --quiet</code>, on
+ * an mse-set file and sends it commands, each answered by one line. The
+ * output is read on its own thread, so a command that MSE doesn't answer in
+ * time, or an MSE that crashes, fails the command instead of hanging the
+ * build. Closing it ends MSE, killing it if it doesn't exit by itself, or
+ * straight away if a command failed or the build was cancelled.
+ *
+ * <pre>
+ * try (MseProcess mse = MseProcess.start(mseExe, setFile, context))
+ * {
+ *     int cards = Integer.parseInt(mse.command("length(set.cards)"));
+ * }
+ * </pre>
+ *
+ * @author cgreene
+ */
+public class MseProcess implements Closeable
+{
+    /** How long to let MSE exit after its input is closed, in milliseconds. */
+    public static final long EXIT_TIMEOUT = 5000;
+    /** How often a waiting command checks if the build was cancelled. */
+    private static final long POLL_INTERVAL = 200;
+    /** Put on the queue when the output ends. */
+    private static final String END = new String("end of output");
+
+    private final Process process;
+    private final Writer input;
+    private final BlockingQueue<String> output = new LinkedBlockingQueue<>();
+    private final Thread reader;
+    private final BuildContext context;
+    private final long timeout;
+    private Integer exitValue;
+    /** Set once a command fails, after which MSE isn't trusted to exit. */
+    private volatile boolean failed;
+
+    private MseProcess(Process process, BuildContext context)
+    {
+        this.process = process;
+        this.context = context;
+        this.timeout = context.getConfig().getMseTimeout();
+        this.input = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        this.reader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                readOutput();
+            }
+        }, "mse-output");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * Start MSE on the set file.
+     *
+     * @param mseExe the MSE executable
+     * @param setFile the mse-set file to open
+     * @param context the build, for its timeout and cancellation
+     * @return the running MSE
+     * @throws IOException if MSE can't be started
+     */
+    public static MseProcess start(Path mseExe, Path setFile, BuildContext context) throws IOException
+    {
+        List<String> command = Arrays.asList(mseExe.toString(), "--cli", "--quiet", setFile.toString());
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        return new MseProcess(builder.start(), context);
+    }
+
+    /**
+     * Send a command and wait for its one line answer.
+     *
+     * @param command the command
+     * @return the answer
+     * @throws IOException if MSE didn't answer in time or has exited
+     * @throws java.util.concurrent.CancellationException if the build was
+     *             cancelled while waiting
+     */
+    public String command(String command) throws IOException
+    {
+        try
+        {
+            return send(command);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            failed = true;
+            throw e;
+        }
+    }
+
+    private String send(String command) throws IOException
+    {
+        context.checkCancelled();
+        try
+        {
+            input.write(command);
+            input.write('\n');
+            input.flush();
+        }
+        catch (IOException e)
+        {
+            throw new IOException("MSE stopped taking commands" + exitStatus() + ".", e);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try
+        {
+            while (true)
+            {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                {
+                    throw new IOException("MSE did not answer \"" + command + "\" within " + timeout + "ms.");
+                }
+                String line = output.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL)),
+                    TimeUnit.NANOSECONDS);
+                if (line == END)
+                {
+                    output.add(END);
+                    throw new IOException("MSE exited before answering \"" + command + "\"" + exitStatus() + ".");
+                }
+                if (line != null)
+                {
+                    return line;
+                }
+                context.checkCancelled();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            context.checkCancelled();
+            throw new IOException("Interrupted waiting for MSE.", e);
+        }
+    }
+
+    /**
+     * @return the exit value of MSE, or null if it hasn't exited
+     */
+    public synchronized Integer getExitValue()
+    {
+        if (exitValue == null && !process.isAlive())
+        {
+            exitValue = process.exitValue();
+        }
+        return exitValue;
+    }
+
+    /**
+     * End MSE by closing its input, killing it if it hasn't exited after
+     * {@link #EXIT_TIMEOUT}. If a command failed or the build was cancelled,
+     * MSE is killed without waiting.
+     */
+    @Override
+    public void close()
+    {
+        boolean kill = failed || context.isCancelled();
+        try
+        {
+            input.close();
+        }
+        catch (IOException e)
+        {
+            // it already exited
+        }
+        boolean interrupted = false;
+        try
+        {
+            if (kill)
+            {
+                process.destroyForcibly().waitFor(EXIT_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            else if (!process.waitFor(EXIT_TIMEOUT, TimeUnit.MILLISECONDS))
+            {
+                process.destroyForcibly().waitFor(EXIT_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            process.destroyForcibly();
+            interrupted = true;
+        }
+        try
+        {
+            // a killed MSE may have left a child holding its output open;
+            // the reader is a daemon, so don't wait long for it
+            reader.join(kill? POLL_INTERVAL : EXIT_TIMEOUT);
+        }
+        catch (InterruptedException e)
+        {
+            interrupted = true;
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+        getExitValue();
+    }
+
+    private void readOutput()
+    {
+        try (BufferedReader lines = new BufferedReader(new InputStreamReader(process.getInputStream(),
+            StandardCharsets.UTF_8)))
+        {
+            String line;
+            while ((line = lines.readLine()) != null)
+            {
+                output.add(line);
+            }
+        }
+        catch (IOException e)
+        {
+            // the process was killed
+        }
+        finally
+        {
+            output.add(END);
+        }
+    }
+
+    private String exitStatus()
+    {
+        try
+        {
+            process.waitFor(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        Integer exit = getExitValue();
+        return (exit != null)? " with exit status " + exit : "";
+    }
+}
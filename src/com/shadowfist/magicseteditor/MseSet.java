@@ -0,0 +1,271 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The contents of the set entry of an existing mse-set file, kept so that
+ * spreadsheet updates can be merged into it without disturbing anything a
+ * designer changed in MSE. Cards are held as their fields and the lines
+ * they were read from, and everything else as the text it was read as, in
+ * the original order. Cards the merge doesn't change are written back as
+ * they were read, and changed cards keep the lines of the fields that
+ * didn't change.
+ *
+ * @author cgreene
+ */
+public class MseSet
+{
+    /**
+     * The card fields that come from the spreadsheet. A merge replaces these
+     * and leaves every other field of a card alone.
+     */
+    public static final List<String> SPREADSHEET_FIELDS;
+    static
+    {
+        SPREADSHEET_FIELDS = new ArrayList<>(CardDiff.COMPARED_FIELDS);
+        SPREADSHEET_FIELDS.add("copyright");
+    }
+
+    /** Strings for the text between cards, {@link Card}s for the cards. */
+    private final List<Object> items = new ArrayList<>();
+    private int updated;
+    private int added;
+
+    /**
+     * Read the set entry of an mse-set file.
+     *
+     * @param mseSetFile the mse-set file
+     * @return the set
+     * @throws IOException if the file can't be read
+     */
+    public static MseSet read(Path mseSetFile) throws IOException
+    {
+        try (InputStream in = Files.newInputStream(mseSetFile))
+        {
+            MseSet set = new MseSet();
+            MseSetReader.readCards(in, set.new Collector());
+            return set;
+        }
+    }
+
+    /**
+     * Parse the text of a set entry.
+     *
+     * @param setText the set text
+     * @return the set
+     * @throws IOException if reading fails
+     */
+    public static MseSet parse(Reader setText) throws IOException
+    {
+        MseSet set = new MseSet();
+        MseSetReader.parse(setText, set.new Collector());
+        return set;
+    }
+
+    /**
+     * Merge cards from the spreadsheet into the set. A card with the same
+     * title and subtitle as an existing card replaces that card's
+     * {@link #SPREADSHEET_FIELDS}, and its time modified is set to
+     * <code>now</code> if any of them changed. Other cards are added after
+     * the last card of the set. Cards in the set that aren't in the
+     * spreadsheet are left as they are.
+     *
+     * @param cards the fields of the spreadsheet cards, as made by
+     *            {@link Main#toCardFields(BuildContext, List)}
+     * @param now the formatted time of the merge
+     */
+    public void merge(List<Map<String, String>> cards, String now)
+    {
+        // hash the existing cards by title and subtitle
+        Map<String, ArrayDeque<Card>> existing = new HashMap<>();
+        int insertAt = items.size();
+        for (int i = 0; i < items.size(); i++)
+        {
+            if (items.get(i) instanceof Card)
+            {
+                Card card = (Card) items.get(i);
+                ArrayDeque<Card> matches = existing.get(CardDiff.key(card.fields));
+                if (matches == null)
+                {
+                    matches = new ArrayDeque<>(2);
+                    existing.put(CardDiff.key(card.fields), matches);
+                }
+                matches.add(card);
+                insertAt = i + 1;
+            }
+        }
+
+        List<Object> newCards = new ArrayList<>();
+        for (Map<String, String> card : cards)
+        {
+            ArrayDeque<Card> matches = existing.get(CardDiff.key(card));
+            Card match = (matches == null)? null : matches.poll();
+            if (match == null)
+            {
+                newCards.add(new Card(card, null));
+                continue;
+            }
+            if (mergeFields(match.fields, card))
+            {
+                match.fields.put("time modified", now);
+                updated++;
+            }
+        }
+        items.addAll(insertAt, newCards);
+        added += newCards.size();
+    }
+
+    /**
+     * Copy the spreadsheet fields of the update into the card, removing any
+     * the update doesn't have. Fields the card doesn't have yet, like a
+     * blank image, are added, and an image replaces the card's image.
+     *
+     * @return true if a compared field changed
+     */
+    private static boolean mergeFields(Map<String, String> card, Map<String, String> update)
+    {
+        boolean changed = false;
+        for (String field : SPREADSHEET_FIELDS)
+        {
+            String value = update.get(field);
+            String old = (value == null || value.isEmpty())? card.remove(field) : card.put(field, value);
+            String oldValue = (old == null)? "" : old.trim();
+            String newValue = (value == null)? "" : value.trim();
+            if (!oldValue.equals(newValue) && CardDiff.COMPARED_FIELDS.contains(field))
+            {
+                changed = true;
+            }
+        }
+        for (Map.Entry<String, String> field : update.entrySet())
+        {
+            if (!card.containsKey(field.getKey())
+                || (field.getKey().equals("image") && !field.getValue().isEmpty()))
+            {
+                card.put(field.getKey(), field.getValue());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Return the set entry text. Cards the merge didn't change are written
+     * as they were read, and the others by
+     * {@link Main#renderCard(Map, String, Map)}.
+     *
+     * @param now the formatted time for changed cards that have no time
+     *            fields
+     * @return the set text
+     */
+    public String toText(String now)
+    {
+        StringBuilder text = new StringBuilder();
+        for (Object item : items)
+        {
+            if (item instanceof Card)
+            {
+                ((Card) item).appendTo(text, now);
+            }
+            else
+            {
+                text.append(item);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return the number of cards changed by {@link #merge(List, String)}
+     */
+    public int getUpdated()
+    {
+        return updated;
+    }
+
+    /**
+     * @return the number of cards added by {@link #merge(List, String)}
+     */
+    public int getAdded()
+    {
+        return added;
+    }
+
+    /**
+     * A card's fields, and what it was read as if it was in the set.
+     */
+    private static class Card
+    {
+        final Map<String, String> fields;
+        final Map<String, String> read;
+        final Map<String, String> lines;
+
+        Card(Map<String, String> fields, Map<String, String> lines)
+        {
+            this.fields = fields;
+            this.read = new HashMap<>(fields);
+            this.lines = lines;
+        }
+
+        void appendTo(StringBuilder text, String now)
+        {
+            if (lines != null && fields.equals(read))
+            {
+                text.append("card:\n");
+                for (String fieldLines : lines.values())
+                {
+                    text.append(fieldLines);
+                }
+                return;
+            }
+            // keep the lines of the fields that didn't change, such as a
+            // styling block, just as they were
+            Map<String, String> kept = new HashMap<>();
+            if (lines != null)
+            {
+                for (Map.Entry<String, String> field : read.entrySet())
+                {
+                    if (field.getValue().equals(fields.get(field.getKey())) && lines.containsKey(field.getKey()))
+                    {
+                        kept.put(field.getKey(), lines.get(field.getKey()));
+                    }
+                }
+            }
+            text.append(Main.renderCard(fields, now, kept));
+        }
+    }
+
+    /**
+     * Keeps what the reader finds in order.
+     */
+    private class Collector implements MseSetReader.CardHandler
+    {
+        @Override
+        public void card(Map<String, String> fields)
+        {
+            items.add(new Card(fields, null));
+        }
+
+        @Override
+        public void card(Map<String, String> fields, Map<String, String> lines)
+        {
+            items.add(new Card(fields, lines));
+        }
+
+        @Override
+        public void other(String text)
+        {
+            items.add(text);
+        }
+    }
+}
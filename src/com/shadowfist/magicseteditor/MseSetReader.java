@@ -0,0 +1,267 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Streaming parser for the <code>set</code> entry of a Magic Set Editor
+ * mse-set file, as described in {@link Main}. Each <code>card:</code> block
+ * is handed to a {@link CardHandler} as soon as it has been read, so the
+ * whole set is never held in memory by the parser.
+ * <p>
+ * Card fields are one tab in from the <code>card:</code> line. A field with
+ * no value on its own line is followed by its value on lines indented by two
+ * tabs, which are joined with line feeds. Everything that isn't a card, such
+ * as the <code>set info:</code> block, is passed on as text exactly as it was
+ * read, and so are the lines of each card field, so that a set can be
+ * written back without losing anything.
+ *
+ * @author cgreene
+ */
+public class MseSetReader
+{
+    public static final String SET_ENTRY = "set";
+
+    /**
+     * Receives the cards of a set in the order they appear.
+     */
+    public interface CardHandler
+    {
+        /**
+         * Called for each card in the set.
+         *
+         * @param fields the card's field names mapped to their values
+         * @throws IOException to stop reading
+         */
+        void card(Map<String, String> fields) throws IOException;
+
+        /**
+         * Called for each card in the set with the lines it was read from.
+         * <code>"card:\n"</code> followed by the lines of every field in
+         * order is the card exactly as it was read. Calls
+         * {@link #card(Map)} by default.
+         *
+         * @param fields the card's field names mapped to their values
+         * @param lines the card's field names mapped to the lines they were
+         *            read from, each ending with a line feed; lines before
+         *            the first field are under the empty name
+         * @throws IOException to stop reading
+         */
+        default void card(Map<String, String> fields, Map<String, String> lines) throws IOException
+        {
+            card(fields);
+        }
+
+        /**
+         * Called for each top-level line that isn't a card, along with any
+         * lines indented below it, in the order they appear between the
+         * cards. Ignored by default.
+         *
+         * @param text the lines, each ending with a line feed
+         * @throws IOException to stop reading
+         */
+        default void other(String text) throws IOException
+        {
+        }
+    }
+
+    /**
+     * Read every card of an mse-set file.
+     *
+     * @param mseSet the zipped mse-set file contents
+     * @return the cards' fields, in set order
+     * @throws IOException if the file can't be read or has no set entry
+     */
+    public static List<Map<String, String>> readCards(InputStream mseSet) throws IOException
+    {
+        final List<Map<String, String>> cards = new ArrayList<>();
+        readCards(mseSet, new CardHandler()
+        {
+            @Override
+            public void card(Map<String, String> fields)
+            {
+                cards.add(fields);
+            }
+        });
+        return cards;
+    }
+
+    /**
+     * Find the set entry in the zipped mse-set file contents and parse it.
+     *
+     * @param mseSet the zipped mse-set file contents
+     * @param handler receives each card
+     * @throws IOException if the file can't be read or has no set entry
+     */
+    public static void readCards(InputStream mseSet, CardHandler handler) throws IOException
+    {
+        ZipInputStream zip = new ZipInputStream(mseSet);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null)
+        {
+            if (SET_ENTRY.equals(entry.getName()))
+            {
+                parse(new InputStreamReader(zip, StandardCharsets.UTF_8), handler);
+                return;
+            }
+        }
+        throw new IOException("The mse-set file has no \"" + SET_ENTRY + "\" entry.");
+    }
+
+    /**
+     * Parse the text of a set entry.
+     *
+     * @param set the set text
+     * @param handler receives each card
+     * @throws IOException if reading fails
+     */
+    public static void parse(Reader set, CardHandler handler) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(set);
+        Map<String, String> card = null;
+        Map<String, String> cardLines = null;
+        StringBuilder other = null;
+        String field = null;
+        // the field the lines being read belong to
+        String owner = null;
+        StringBuilder multiLine = null;
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            if (line.startsWith("\uFEFF"))
+            {
+                // MSE writes a byte order mark
+                line = line.substring(1);
+            }
+            int depth = 0;
+            while (depth < line.length() && line.charAt(depth) == '\t')
+            {
+                depth++;
+            }
+
+            if (depth == 0 && !line.isEmpty())
+            {
+                // a new top-level block; finish the previous one
+                if (card != null)
+                {
+                    if (multiLine != null)
+                    {
+                        card.put(field, trimTrailingLines(multiLine));
+                        multiLine = null;
+                    }
+                    handler.card(card, cardLines);
+                    card = null;
+                    cardLines = null;
+                    field = null;
+                }
+                if (other != null)
+                {
+                    handler.other(other.toString());
+                    other = null;
+                }
+                if (line.equals("card:"))
+                {
+                    card = new LinkedHashMap<>();
+                    cardLines = new LinkedHashMap<>();
+                    owner = null;
+                }
+                else
+                {
+                    other = new StringBuilder(line).append('\n');
+                }
+            }
+            else if (card == null)
+            {
+                if (other == null)
+                {
+                    other = new StringBuilder();
+                }
+                other.append(line).append('\n');
+            }
+            else if (depth >= 2 || (line.isEmpty() && multiLine != null))
+            {
+                // continuation of a multi-line value
+                appendLine(cardLines, owner, line);
+                if (field != null)
+                {
+                    if (multiLine == null)
+                    {
+                        multiLine = new StringBuilder();
+                    }
+                    else
+                    {
+                        multiLine.append('\n');
+                    }
+                    multiLine.append(line, Math.min(2, depth), line.length());
+                }
+            }
+            else if (depth == 1)
+            {
+                // finish the previous field
+                if (multiLine != null)
+                {
+                    card.put(field, trimTrailingLines(multiLine));
+                    multiLine = null;
+                }
+                field = null;
+
+                int colon = line.indexOf(':');
+                if (colon > 0)
+                {
+                    field = line.substring(1, colon);
+                    String value = line.substring(colon + 1);
+                    card.put(field, value.startsWith(" ")? value.substring(1) : value);
+                    owner = field;
+                }
+                appendLine(cardLines, owner, line);
+            }
+            else
+            {
+                // a blank line between fields
+                appendLine(cardLines, owner, line);
+            }
+        }
+        if (card != null)
+        {
+            if (multiLine != null)
+            {
+                card.put(field, trimTrailingLines(multiLine));
+            }
+            handler.card(card, cardLines);
+        }
+        if (other != null)
+        {
+            handler.other(other.toString());
+        }
+    }
+
+    private static void appendLine(Map<String, String> lines, String field, String line)
+    {
+        String name = (field == null)? "" : field;
+        String read = lines.get(name);
+        lines.put(name, ((read == null)? "" : read) + line + '\n');
+    }
+
+    private static String trimTrailingLines(StringBuilder value)
+    {
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) == '\n')
+        {
+            end--;
+        }
+        return value.substring(0, end);
+    }
+}
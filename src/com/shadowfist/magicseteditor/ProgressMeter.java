@@ -0,0 +1,104 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes everything on to another listener, adding messages with how fast
+ * each stage is going: every {@link #REPORT_INTERVAL} the rate and the time
+ * left, like
+ * <pre>
+ * export: 120 of 400, 9.8 per second, about 29s left
+ * export: 400 of 400 in 41.2s, 9.7 per second
+ * </pre>
+ * and when the stage is done, its time and rate.
+ *
+ * @author cgreene
+ */
+public class ProgressMeter implements BuildListener
+{
+    /** How often to report a stage that is still going, in milliseconds. */
+    public static final long REPORT_INTERVAL = 5000;
+
+    private final BuildListener listener;
+    private final long interval;
+    /** The start, steps done at the start, last report and steps done of each stage. */
+    private final Map<Stage, long[]> stages = new EnumMap<>(Stage.class);
+
+    /**
+     * @param listener the listener to pass everything on to
+     */
+    public ProgressMeter(BuildListener listener)
+    {
+        this(listener, REPORT_INTERVAL);
+    }
+
+    /**
+     * @param listener the listener to pass everything on to
+     * @param interval how often to report a stage that is still going, in
+     *            milliseconds
+     */
+    public ProgressMeter(BuildListener listener, long interval)
+    {
+        this.listener = listener;
+        this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+    }
+
+    @Override
+    public void message(String message)
+    {
+        listener.message(message);
+    }
+
+    @Override
+    public void progress(Stage stage, int done, int total)
+    {
+        listener.progress(stage, done, total);
+        String report = update(stage, done, total, System.nanoTime());
+        if (report != null)
+        {
+            listener.message(report);
+        }
+    }
+
+    /**
+     * Record the progress and return a report if one is due.
+     *
+     * @return the report or null
+     */
+    protected synchronized String update(Stage stage, int done, int total, long now)
+    {
+        long[] times = stages.get(stage);
+        if (times == null || done <= times[3])
+        {
+            // the stage (re)started; the first step is already done, so
+            // rates count from it
+            times = new long[] { now, done, now, done };
+            stages.put(stage, times);
+        }
+        times[3] = done;
+        long elapsed = now - times[0];
+        double seconds = elapsed / 1e9;
+        double rate = (seconds > 0)? (done - times[1]) / seconds : 0;
+        String name = stage.toString().toLowerCase(Locale.ROOT);
+        if (done >= total)
+        {
+            stages.remove(stage);
+            return String.format(Locale.ROOT, "%s: %d of %d in %.1fs, %.1f per second", name, done, total, seconds,
+                rate);
+        }
+        if (now - times[2] < interval || rate <= 0)
+        {
+            return null;
+        }
+        times[2] = now;
+        long left = Math.round((total - done) / rate);
+        return String.format(Locale.ROOT, "%s: %d of %d, %.1f per second, about %ds left", name, done, total, rate,
+            left);
+    }
+}
@@ -0,0 +1,188 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Builds an mse-set file and PDF from a {@link BuildConfig} inside the
+ * calling program, the same as running {@link Main} but without starting a
+ * JVM for each set. Progress goes to a {@link BuildListener} instead of the
+ * console and the output to a {@link BuildSink} as it is made, like
+ * <pre>
+ * BuildResult result = new SetBuilder(config)
+ *     .listener(myListener)
+ *     .sink(mySink)
+ *     .build();
+ * </pre>
+ * or, to run builds at the same time,
+ * <pre>
+ * CompletableFuture&lt;BuildResult&gt; result = new SetBuilder(config)
+ *     .executor(myExecutor)
+ *     .buildAsync();
+ * </pre>
+ * Builds share no state, so any number can run at once as long as they
+ * write different files.
+ *
+ * @author cgreene
+ */
+public class SetBuilder
+{
+    private final BuildConfig config;
+    private BuildListener listener = BuildListener.NONE;
+    private BuildSink sink = BuildSink.NONE;
+    private Executor executor;
+
+    /**
+     * Create a builder of the set described by the config.
+     *
+     * @param config the settings of the build
+     */
+    public SetBuilder(BuildConfig config)
+    {
+        this.config = config;
+    }
+
+    /**
+     * @param listener what to tell about the progress of the build
+     * @return this builder
+     */
+    public SetBuilder listener(BuildListener listener)
+    {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * @param sink what to give the output of the build to
+     * @return this builder
+     */
+    public SetBuilder sink(BuildSink sink)
+    {
+        this.sink = sink;
+        return this;
+    }
+
+    /**
+     * Set the executor {@link #buildAsync()} runs builds on. Builds block on
+     * downloads and MSE, so a service should give an executor sized for
+     * that rather than use the default, the common fork/join pool.
+     *
+     * @param executor the executor
+     * @return this builder
+     */
+    public SetBuilder executor(Executor executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Run the build on the calling thread: read the cards, write the
+     * mse-set file, export the card images with MSE and collate them into a
+     * PDF. If the config has a {@link BuildConfig#getDiffUrl()} a changelog
+     * is made instead.
+     *
+     * @return the files made
+     * @throws IOException if reading or writing fails
+     * @throws IllegalStateException if the cards aren't valid
+     * @throws CancellationException if the thread is interrupted
+     */
+    public BuildResult build() throws IOException
+    {
+        return run(newContext());
+    }
+
+    /**
+     * Run the build on the executor. The future fails with an
+     * {@link UncheckedIOException} where {@link #build()} would throw an
+     * {@link IOException}. Cancelling the future stops the build at the
+     * next check of its stages, ending MSE if it is running.
+     *
+     * @return the files made, once the build is done
+     */
+    public CompletableFuture<BuildResult> buildAsync()
+    {
+        final BuildContext context = newContext();
+        Supplier<BuildResult> build = new Supplier<BuildResult>()
+        {
+            @Override
+            public BuildResult get()
+            {
+                try
+                {
+                    return run(context);
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        CompletableFuture<BuildResult> result = (executor != null)? CompletableFuture.supplyAsync(build, executor)
+            : CompletableFuture.supplyAsync(build);
+        result.whenComplete(new BiConsumer<BuildResult, Throwable>()
+        {
+            @Override
+            public void accept(BuildResult built, Throwable failure)
+            {
+                if (failure instanceof CancellationException)
+                {
+                    context.cancel();
+                }
+            }
+        });
+        return result;
+    }
+
+    private BuildContext newContext()
+    {
+        return new BuildContext(config).withListener(listener).withSink(sink);
+    }
+
+    private static BuildResult run(BuildContext context) throws IOException
+    {
+        BuildConfig config = context.getConfig();
+        if (config.getDiffUrl() != null)
+        {
+            return Main.compareVersions(context);
+        }
+
+        // download csv and find the artwork of the cards
+        List<List<String>> records = Main.readSelectedRecords(context);
+        context = Main.prepareArtwork(context, records);
+
+        String setData;
+        Path previousSet = null;
+        if (config.isMerge() && Files.exists(config.getMseSetFile()))
+        {
+            // merge into the existing set
+            setData = Main.mergeInput(context, records);
+            previousSet = config.getMseSetFile();
+        }
+        else
+        {
+            // transform into mse-set and build set file
+            setData = Main.buildSetFile(Main.transformInput(context, records));
+        }
+        context.getSink().setText(setData);
+
+        // create zip file for mse-set
+        Main.writeMseFile(context, setData, previousSet);
+
+        // use mse command line interface to create image files and collate
+        // them into a pdf file
+        Path pdfFile = Main.exportPdf(context);
+        return new BuildResult(config.getMseSetFile(), pdfFile, null, records.size());
+    }
+}
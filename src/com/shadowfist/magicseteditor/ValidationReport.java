@@ -0,0 +1,245 @@
+/* @Copyright 2016 Christian Greene
+ * Shadowfist is a registered trademark of Inner Kingdom Games.
+ */
+package com.shadowfist.magicseteditor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The problems {@link CardValidator} found in the card records, which can be
+ * printed for a person to read or written as JSON for other tools, like
+ * <pre>
+ * {
+ *   "source": "https://docs.google.com/...",
+ *   "records": 412,
+ *   "errors": 1,
+ *   "warnings": 1,
+ *   "issues": [
+ *     {"row": 7, "column": "Body", "severity": "error", "message": "The row has 9 columns, expected 12.", "value": ""},
+ *     {"row": 9, "column": "Text", "severity": "warning", "message": "Unknown keyword Toughnes, did you mean Toughness?", "value": "Toughnes: 1."}
+ *   ]
+ * }
+ * </pre>
+ * Rows are numbered like the spreadsheet, so the first card is row 2.
+ *
+ * @author cgreene
+ */
+public class ValidationReport
+{
+    public enum Severity
+    {
+        ERROR, WARNING
+    }
+
+    /**
+     * One problem with one value of a card.
+     */
+    public static class Issue
+    {
+        private final int row;
+        private final String column;
+        private final Severity severity;
+        private final String message;
+        private final String value;
+
+        public Issue(int row, String column, Severity severity, String message, String value)
+        {
+            this.row = row;
+            this.column = column;
+            this.severity = severity;
+            this.message = message;
+            this.value = value;
+        }
+
+        public int getRow()
+        {
+            return row;
+        }
+
+        public String getColumn()
+        {
+            return column;
+        }
+
+        public Severity getSeverity()
+        {
+            return severity;
+        }
+
+        public String getMessage()
+        {
+            return message;
+        }
+
+        public String getValue()
+        {
+            return value;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Row " + row + ", " + column + ": " + severity.toString().toLowerCase(Locale.ROOT) + ": " + message;
+        }
+    }
+
+    private final String source;
+    private final int records;
+    private final List<Issue> issues;
+
+    /**
+     * Create a report. The issues are sorted by row.
+     *
+     * @param source where the records came from
+     * @param records the number of records checked
+     * @param issues the problems found
+     */
+    public ValidationReport(String source, int records, List<Issue> issues)
+    {
+        this.source = source;
+        this.records = records;
+        this.issues = new ArrayList<>(issues);
+        Collections.sort(this.issues, new Comparator<Issue>()
+        {
+            @Override
+            public int compare(Issue a, Issue b)
+            {
+                return Integer.compare(a.getRow(), b.getRow());
+            }
+        });
+    }
+
+    /**
+     * @return the problems found, by row
+     */
+    public List<Issue> getIssues()
+    {
+        return Collections.unmodifiableList(issues);
+    }
+
+    /**
+     * @return the number of issues that should stop the build
+     */
+    public int getErrorCount()
+    {
+        return count(Severity.ERROR);
+    }
+
+    /**
+     * @return the number of issues that should be looked at
+     */
+    public int getWarningCount()
+    {
+        return count(Severity.WARNING);
+    }
+
+    /**
+     * @return true if there are no errors
+     */
+    public boolean isValid()
+    {
+        return getErrorCount() == 0;
+    }
+
+    /**
+     * Write each issue on a line followed by a summary line.
+     *
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    public void print(Appendable out) throws IOException
+    {
+        for (Issue issue : issues)
+        {
+            out.append(issue.toString()).append('\n');
+        }
+        out.append("Checked " + records + " cards: " + getErrorCount() + " errors, " + getWarningCount()
+            + " warnings.\n");
+    }
+
+    /**
+     * @return the report as a JSON document
+     */
+    public String toJson()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"source\": ").append(quote(source)).append(",\n");
+        json.append("  \"records\": ").append(records).append(",\n");
+        json.append("  \"errors\": ").append(getErrorCount()).append(",\n");
+        json.append("  \"warnings\": ").append(getWarningCount()).append(",\n");
+        json.append("  \"issues\": [");
+        for (int i = 0; i < issues.size(); i++)
+        {
+            Issue issue = issues.get(i);
+            json.append((i == 0)? "\n" : ",\n");
+            json.append("    {\"row\": ").append(issue.getRow());
+            json.append(", \"column\": ").append(quote(issue.getColumn()));
+            json.append(", \"severity\": ").append(quote(issue.getSeverity().toString().toLowerCase(Locale.ROOT)));
+            json.append(", \"message\": ").append(quote(issue.getMessage()));
+            json.append(", \"value\": ").append(quote(issue.getValue())).append("}");
+        }
+        json.append(issues.isEmpty()? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private int count(Severity severity)
+    {
+        int count = 0;
+        for (Issue issue : issues)
+        {
+            if (issue.getSeverity() == severity)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String quote(String value)
+    {
+        if (value == null)
+        {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char ch = value.charAt(i);
+            switch (ch)
+            {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20)
+                    {
+                        quoted.append(String.format("\\u%04x", (int) ch));
+                    }
+                    else
+                    {
+                        quoted.append(ch);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
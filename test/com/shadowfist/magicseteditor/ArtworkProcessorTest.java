@@ -0,0 +1,147 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class ArtworkProcessorTest
+{
+
+    private static void deleteTree(Path directory) throws IOException
+    {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+            {
+                if (Files.isDirectory(file))
+                {
+                    deleteTree(file);
+                }
+                else
+                {
+                    Files.delete(file);
+                }
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testArtworkIsScaledToTheCardFrameAndCached() throws IOException
+    {
+        Path art = Files.createTempDirectory("art");
+        Path cache = Files.createTempDirectory("art-cache");
+        try
+        {
+            BufferedImage image = new BufferedImage(1600, 1200, BufferedImage.TYPE_INT_ARGB);
+            ImageIO.write(image, "png", art.resolve("All the Power.png").toFile());
+
+            List<String[]> titles = new ArrayList<>();
+            titles.add(new String[] { "All the Power", "Edge" });
+            titles.add(new String[] { "No Art", "" });
+            ArtworkProcessor processor = new ArtworkProcessor(art.toString(), cache, 64 * 1024 * 1024,
+                new BuildContext(BuildConfig.builder().mseSetFile(art.resolve("test.mse-set")).build()));
+
+            Map<String, Path> images = processor.process(titles);
+            assertEquals("images", 1, images.size());
+            Path scaled = images.get(CardDiff.key("All the Power", "Edge"));
+            BufferedImage result = ImageIO.read(scaled.toFile());
+            assertTrue("width", result.getWidth() <= ArtworkProcessor.CARD_WIDTH);
+            assertTrue("height", result.getHeight() <= ArtworkProcessor.CARD_HEIGHT);
+            assertEquals("shape", 1600.0 / 1200.0, (double) result.getWidth() / result.getHeight(), 0.02);
+
+            long modified = Files.getLastModifiedTime(scaled).toMillis();
+            assertEquals("cached", scaled, processor.process(titles).get(CardDiff.key("All the Power", "Edge")));
+            assertEquals("not rewritten", modified, Files.getLastModifiedTime(scaled).toMillis());
+        }
+        finally
+        {
+            deleteTree(art);
+            deleteTree(cache);
+        }
+    }
+
+    @Test
+    public void testCacheOverItsSizeKeepsOnlyTheLastBuild() throws IOException
+    {
+        Path art = Files.createTempDirectory("art");
+        Path cache = Files.createTempDirectory("art-cache");
+        try
+        {
+            BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+            ImageIO.write(image, "png", art.resolve("Pagoda.png").toFile());
+            ImageIO.write(image, "bmp", art.resolve("Gambling House.bmp").toFile());
+            ArtworkProcessor processor = new ArtworkProcessor(art.toString(), cache, 64 * 1024 * 1024,
+                new BuildContext(BuildConfig.builder().mseSetFile(art.resolve("test.mse-set")).build()));
+            processor.setCacheSize(1);
+
+            List<String[]> titles = new ArrayList<>();
+            titles.add(new String[] { "Pagoda", "" });
+            Path pagoda = processor.process(titles).get(CardDiff.key("Pagoda", ""));
+            assertTrue("kept while in use", Files.exists(pagoda));
+
+            titles.set(0, new String[] { "Gambling House", "" });
+            Path house = processor.process(titles).get(CardDiff.key("Gambling House", ""));
+            assertTrue("in use", Files.exists(house));
+            assertFalse("evicted", Files.exists(pagoda));
+        }
+        finally
+        {
+            deleteTree(art);
+            deleteTree(cache);
+        }
+    }
+
+    @Test
+    public void testCardsWithTheSameTitleKeepTheirOwnArtwork() throws IOException
+    {
+        Path art = Files.createTempDirectory("art");
+        Path cache = Files.createTempDirectory("art-cache");
+        try
+        {
+            BufferedImage imperial = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+            BufferedImage rebel = new BufferedImage(300, 400, BufferedImage.TYPE_INT_RGB);
+            ImageIO.write(imperial, "png", art.resolve("Bei Kong Imperial.png").toFile());
+            ImageIO.write(rebel, "png", art.resolve("Bei Kong Rebel.png").toFile());
+
+            List<String[]> titles = new ArrayList<>();
+            titles.add(new String[] { "Bei Kong", "Imperial" });
+            titles.add(new String[] { "Bei Kong", "Rebel" });
+            BuildContext context = new BuildContext(BuildConfig.builder().mseSetFile(art.resolve("test.mse-set"))
+                .build());
+            ArtworkProcessor processor = new ArtworkProcessor(art.toString(), cache, 64 * 1024 * 1024, context);
+
+            Map<String, Path> images = processor.process(titles);
+            assertEquals("images", 2, images.size());
+            Path imperialImage = images.get(CardDiff.key("Bei Kong", "Imperial"));
+            Path rebelImage = images.get(CardDiff.key("Bei Kong", "Rebel"));
+            assertFalse("own artwork", imperialImage.equals(rebelImage));
+            assertTrue("landscape", ImageIO.read(imperialImage.toFile()).getWidth() > ImageIO.read(
+                imperialImage.toFile()).getHeight());
+            assertTrue("portrait", ImageIO.read(rebelImage.toFile()).getWidth() < ImageIO.read(
+                rebelImage.toFile()).getHeight());
+
+            context = context.withCardImages(images);
+            assertEquals(imperialImage.getFileName().toString(), context.getCardImage("Bei Kong", "Imperial"));
+            assertEquals(rebelImage.getFileName().toString(), context.getCardImage("Bei Kong", "Rebel"));
+            assertEquals("", context.getCardImage("Bei Kong", ""));
+        }
+        finally
+        {
+            deleteTree(art);
+            deleteTree(cache);
+        }
+    }
+
+}
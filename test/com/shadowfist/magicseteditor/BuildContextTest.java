@@ -0,0 +1,85 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class BuildContextTest
+{
+
+    private static BuildConfig config(String copyright)
+    {
+        return BuildConfig.builder().mseSetFile(Paths.get("test.mse-set")).copyright(copyright).build();
+    }
+
+    @Test
+    public void testAfternoonTimestamp()
+    {
+        BuildContext context = new BuildContext(config(""), LocalDateTime.of(2016, 7, 28, 15, 8, 54));
+        assertEquals("2016-07-28 15:08:54", context.getTimestamp());
+    }
+
+    @Test
+    public void testConcurrentBuildsKeepTheirOwnSettings() throws Exception
+    {
+        final List<String> values = Arrays.asList("All the Power", "Edge", "Unaligned", "Edge", "", "", "", "", "",
+            "Toughness: 1.", "footer2", "cgreene");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            List<Future<String>> cards = new ArrayList<>();
+            for (int i = 0; i < 200; i++)
+            {
+                final BuildContext context = new BuildContext(config("round " + i),
+                    LocalDateTime.of(2016, 7, 28, i % 24, 0, 0));
+                cards.add(executor.submit(new Callable<String>()
+                {
+                    @Override
+                    public String call()
+                    {
+                        return Main.transformCard(context, values).toString();
+                    }
+                }));
+            }
+            for (int i = 0; i < cards.size(); i++)
+            {
+                String card = cards.get(i).get();
+                assertTrue(card, card.contains("\tcopyright: round " + i + "\n"));
+                assertTrue(card, card.contains(String.format("\ttime created: 2016-07-28 %02d:00:00\n", i % 24)));
+                assertTrue(card, card.contains("\trules: <b>Toughness</b>: 1.\n"));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParseArguments() throws Exception
+    {
+        Properties defaults = new Properties();
+        defaults.setProperty(Main.KEY_URL, "file:///tmp/default.csv");
+        defaults.setProperty("copyright", "playtest round 1");
+
+        BuildConfig config = Main.parseArguments(new String[] { "-d=out", "-f=playtest.mse-set",
+            "-diff=file:///tmp/old.csv", "-changed", "-debug" }, defaults);
+        assertEquals("/tmp/default.csv", config.getInputUrl().getPath());
+        assertEquals(Paths.get("out", "playtest-changes.mse-set"), config.getMseSetFile());
+        assertEquals("playtest round 1", config.getCopyright());
+        assertTrue(config.isChangedOnly());
+        assertTrue(config.isDebug());
+        assertNull(config.getMseExe());
+    }
+}
@@ -0,0 +1,249 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BuildServerTest
+{
+    private static final String HEADER = "Title,Subtitle,Faction,CardType,Cost,Provides,Fighting,Power,Body,Text,Artist,Designer\n";
+
+    private Path workDirectory;
+    private BuildServer server;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        workDirectory = Files.createTempDirectory("buildserver");
+        BuildConfig template = BuildConfig.builder().mseSetFile(Paths.get("unused.mse-set"))
+            .copyright("playtest round 1").build();
+        server = new BuildServer(new InetSocketAddress("127.0.0.1", 0), template, workDirectory, 2, 4, 10);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.stop();
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(workDirectory))
+        {
+            for (Iterator<Path> i = walk.iterator(); i.hasNext();)
+            {
+                files.add(i.next());
+            }
+        }
+        Collections.reverse(files);
+        for (Path file : files)
+        {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /** Returns the status, the cache header and the body. */
+    private Object[] post(String csv) throws IOException
+    {
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/build");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream())
+        {
+            out.write(csv.getBytes(StandardCharsets.UTF_8));
+        }
+        return answer(connection);
+    }
+
+    /** Returns the status, the cache header and the body. */
+    private Object[] get(String query) throws IOException
+    {
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/build?" + query);
+        return answer((HttpURLConnection) url.openConnection());
+    }
+
+    private static Object[] answer(HttpURLConnection connection) throws IOException
+    {
+        int status = connection.getResponseCode();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = (status < 400)? connection.getInputStream() : connection.getErrorStream())
+        {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0)
+            {
+                body.write(buffer, 0, read);
+            }
+        }
+        return new Object[] { status, connection.getHeaderField(BuildServer.HEADER_CACHE), body.toByteArray() };
+    }
+
+    @Test
+    public void testBurstOfSameCardsIsBuiltOnce() throws Exception
+    {
+        final String csv = HEADER + "Gambling House,,Lotus,Character,3,m,,1,,Guts. <Netherworld>.,,cgreene\n";
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<Object[]>> responses = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+            {
+                responses.add(callers.submit(new Callable<Object[]>()
+                {
+                    @Override
+                    public Object[] call() throws IOException
+                    {
+                        return post(csv);
+                    }
+                }));
+            }
+            int misses = 0;
+            for (Future<Object[]> response : responses)
+            {
+                Object[] result = response.get();
+                assertEquals(200, result[0]);
+                byte[] body = (byte[]) result[2];
+                assertTrue("zip", body.length > 4 && body[0] == 'P' && body[1] == 'K');
+                if ("miss".equals(result[1]))
+                {
+                    misses++;
+                }
+            }
+            assertEquals("builds", 1, misses);
+            assertEquals("hit", post(csv)[1]);
+        }
+        finally
+        {
+            callers.shutdown();
+        }
+    }
+
+    @Test
+    public void testInvalidCardsAnswerWithReport() throws Exception
+    {
+        Object[] result = post(HEADER + "Gambling House,,Lotus,Character,3\n");
+        assertEquals(422, result[0]);
+        String report = new String((byte[]) result[2], StandardCharsets.UTF_8);
+        assertTrue(report, report.contains("\"errors\": 1"));
+
+        // the failed build is forgotten and its files deleted once answered
+        long deadline = System.currentTimeMillis() + 5000;
+        while (jobDirectories() > 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(20);
+        }
+        assertEquals(0L, jobDirectories());
+        assertEquals("miss", post(HEADER + "Gambling House,,Lotus,Character,3\n")[1]);
+    }
+
+    private long jobDirectories() throws IOException
+    {
+        try (Stream<Path> directories = Files.list(workDirectory))
+        {
+            return directories.count();
+        }
+    }
+
+    @Test
+    public void testFullQueueAnswers503() throws Exception
+    {
+        Assume.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+        // stands in for MSE, never answering, so builds wait until stopped
+        Path mseExe = workDirectory.resolve("mse");
+        Files.write(mseExe, "#!/bin/sh\nexec sleep 30\n".getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(mseExe, PosixFilePermissions.fromString("rwx------"));
+        server.stop();
+        BuildConfig template = BuildConfig.builder().mseSetFile(Paths.get("unused.mse-set")).mseExe(mseExe)
+            .copyright("playtest round 1").build();
+        // one build running and one waiting
+        server = new BuildServer(new InetSocketAddress("127.0.0.1", 0), template, workDirectory.resolve("jobs"), 1, 1,
+            10);
+        server.start();
+
+        ExecutorService callers = Executors.newFixedThreadPool(3);
+        CompletionService<Object[]> responses = new ExecutorCompletionService<>(callers);
+        try
+        {
+            for (int i = 0; i < 3; i++)
+            {
+                final String csv = HEADER + "Gambling House " + i + ",,Lotus,Character,3,m,,1,,Guts.,,cgreene\n";
+                responses.submit(new Callable<Object[]>()
+                {
+                    @Override
+                    public Object[] call() throws IOException
+                    {
+                        return post(csv);
+                    }
+                });
+            }
+            Future<Object[]> first = responses.poll(10, TimeUnit.SECONDS);
+            assertNotNull("no answer while the queue is full", first);
+            assertEquals(503, first.get()[0]);
+        }
+        finally
+        {
+            server.stop();
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testOnlyAllowedHttpUrlsAreDownloaded() throws Exception
+    {
+        Path secret = workDirectory.resolve("secret.csv");
+        Files.write(secret, (HEADER + "Secret,,Lotus,Character,3,m,,1,,Guts.,,cgreene\n").getBytes(StandardCharsets.UTF_8));
+        Object[] result = get("url=" + URLEncoder.encode(secret.toUri().toString(), "UTF-8"));
+        assertEquals(400, result[0]);
+        String body = new String((byte[]) result[2], StandardCharsets.UTF_8);
+        assertTrue(body, body.contains("Only http and https"));
+        assertFalse(body, body.contains("Secret"));
+
+        // an internal service on a host that isn't allowed
+        result = get("url=" + URLEncoder.encode("http://127.0.0.1:" + server.getAddress().getPort() + "/build",
+            "UTF-8"));
+        assertEquals(400, result[0]);
+    }
+
+    @Test
+    public void testOnlyTheBuildPathIsServed() throws Exception
+    {
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + BuildServer.PATH + "X");
+        assertEquals(404, answer((HttpURLConnection) url.openConnection())[0]);
+    }
+
+    @Test
+    public void testServeListensOnLoopbackByDefault()
+    {
+        assertTrue(Main.toServeAddress("8080").getAddress().isLoopbackAddress());
+        assertEquals(8080, Main.toServeAddress("8080").getPort());
+        assertTrue(Main.toServeAddress("0.0.0.0:8081").getAddress().isAnyLocalAddress());
+    }
+}
@@ -0,0 +1,174 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link CSVUtils#parseLine(String, char)} against a slow reference
+ * parser on random records and random garbage. A failure names the seed,
+ * so it can be reproduced with <code>new Random(seed)</code>.
+ */
+public class CSVUtilsFuzzTest
+{
+    private static final int RUNS = 2000;
+    private static final String[] PIECES = { "a", "Lotus", " ", "\"", ",", ";", "\r", "\n", "\r\n", "\u00e9", "\u00a0",
+        "\u6f22", "\ud83d\udc09", "<Fire>", "\t", "''" };
+
+    /**
+     * Parses the way the spreadsheet export is read: outside quotes, a quote
+     * starts quoted text, the separator ends a field, LF ends the record and
+     * CR is dropped; inside quotes, two quotes are one quote and one quote
+     * ends quoted text.
+     */
+    static List<String> referenceParse(String line, char separator)
+    {
+        List<String> fields = new ArrayList<>();
+        if (line == null || line.isEmpty())
+        {
+            return fields;
+        }
+        String s = "\\" + separator;
+        Pattern token = Pattern.compile("\"((?:[^\"]++|\"\")*+)(?:\"|$)|(" + s + ")|(\n)|(\r)|([^\"\r\n" + s + "]++)");
+        Matcher matcher = token.matcher(line);
+        String field = "";
+        while (matcher.lookingAt())
+        {
+            if (matcher.group(2) != null)
+            {
+                fields.add(field);
+                field = "";
+            }
+            else if (matcher.group(3) != null)
+            {
+                break;
+            }
+            else if (matcher.group(1) != null)
+            {
+                field += matcher.group(1).replace("\"\"", "\"");
+            }
+            else if (matcher.group(5) != null)
+            {
+                field += matcher.group(5);
+            }
+            matcher.region(matcher.end(), line.length());
+        }
+        fields.add(field);
+        return fields;
+    }
+
+    /** Writes fields the way a spreadsheet does, quoting them when needed or at random. */
+    static String encode(List<String> fields, char separator, Random random)
+    {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.size(); i++)
+        {
+            if (i > 0)
+            {
+                line.append(separator);
+            }
+            String field = fields.get(i);
+            boolean quote = random.nextInt(4) == 0 || field.indexOf(separator) >= 0 || field.indexOf('"') >= 0
+                || field.indexOf('\r') >= 0 || field.indexOf('\n') >= 0;
+            if (quote)
+            {
+                line.append('"').append(field.replace("\"", "\"\"")).append('"');
+            }
+            else
+            {
+                line.append(field);
+            }
+        }
+        return line.toString();
+    }
+
+    static String randomText(Random random, int pieces)
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < pieces; i++)
+        {
+            text.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return text.toString();
+    }
+
+    static List<String> randomRecord(Random random)
+    {
+        List<String> fields = new ArrayList<>();
+        int count = 1 + random.nextInt(14);
+        for (int i = 0; i < count; i++)
+        {
+            // now and then a huge field, like rules text pasted many times
+            int pieces = (random.nextInt(200) == 0)? 20000 + random.nextInt(20000) : random.nextInt(12);
+            fields.add(randomText(random, pieces));
+        }
+        return fields;
+    }
+
+    private static String abbreviate(String text)
+    {
+        String shown = (text.length() > 200)? text.substring(0, 200) + "...(" + text.length() + " chars)" : text;
+        return shown.replace("\r", "\\r").replace("\n", "\\n");
+    }
+
+    @Test
+    public void testReferenceParserAgreesWithKnownLines()
+    {
+        assertEquals(Arrays.asList("a", "bb", "This sentence has a, comma.", "dddd"),
+            referenceParse("a,bb,\"This sentence has a, comma.\",dddd", ','));
+        assertEquals(Arrays.asList("She said \"hi\"", ""), referenceParse("\"She said \"\"hi\"\"\",", ','));
+        assertEquals(Arrays.asList("line\r\nbreak", "x"), referenceParse("\"line\r\nbreak\",x\r\nnext,record", ','));
+        assertEquals(Arrays.asList(), referenceParse("", ','));
+    }
+
+    @Test
+    public void testEscapedQuotesAreKept()
+    {
+        assertEquals(Arrays.asList("She said \"hi\"", "x"), CSVUtils.parseLine("\"She said \"\"hi\"\"\",x"));
+        assertEquals(Arrays.asList("\"", ""), CSVUtils.parseLine("\"\"\"\","));
+    }
+
+    @Test
+    public void testRandomRecordsRoundTrip()
+    {
+        for (int run = 0; run < RUNS; run++)
+        {
+            long seed = 0x5f0000L + run;
+            Random random = new Random(seed);
+            char separator = random.nextBoolean()? ',' : ';';
+            List<String> fields = randomRecord(random);
+            String line = encode(fields, separator, random);
+            String[] endings = { "", "\n", "\r\n", "\nnext,record\n" };
+            line += endings[random.nextInt(endings.length)];
+
+            if (line.isEmpty())
+            {
+                // one empty field is an empty line, which has no fields
+                fields = new ArrayList<>();
+            }
+
+            String message = "seed " + seed + ": " + abbreviate(line);
+            assertEquals(message, fields, referenceParse(line, separator));
+            assertEquals(message, fields, CSVUtils.parseLine(line, separator));
+        }
+    }
+
+    @Test
+    public void testRandomGarbageMatchesReference()
+    {
+        for (int run = 0; run < RUNS; run++)
+        {
+            long seed = 0x6a0000L + run;
+            Random random = new Random(seed);
+            String line = randomText(random, random.nextInt(40));
+            assertEquals("seed " + seed + ": " + abbreviate(line), referenceParse(line, ','), CSVUtils.parseLine(line));
+        }
+    }
+}
@@ -19,4 +19,14 @@ public class CSVUtilsTest
         assertEquals("dddd", result.get(3));
     }
 
+    @Test
+    public void testParsingLineWithEscapedQuotes()
+    {
+        List<String> result = CSVUtils.parseLine("\"She said \"\"hi\"\"\",x");
+        assertNotNull("result", result);
+        assertEquals("tokens", 2, result.size());
+        assertEquals("quoted", "She said \"hi\"", result.get(0));
+        assertEquals("x", result.get(1));
+    }
+
 }
@@ -0,0 +1,84 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CardDiffTest
+{
+
+    private static Map<String, String> card(String title, String rules)
+    {
+        Map<String, String> card = new LinkedHashMap<>();
+        card.put("title", title);
+        card.put("rules", rules);
+        card.put("time created", String.valueOf(System.nanoTime()));
+        return card;
+    }
+
+    @Test
+    public void testChangedAddedAndRemovedCards()
+    {
+        List<Map<String, String>> oldCards = new ArrayList<>();
+        oldCards.add(card("Gambling House", "Guts."));
+        oldCards.add(card("Golden Comeback", "Toast It."));
+        oldCards.add(card("Pagoda", ""));
+        List<Map<String, String>> newCards = new ArrayList<>();
+        newCards.add(card("Pagoda", ""));
+        newCards.add(card("Gambling House", "Guts. Superleap."));
+        newCards.add(card("Shaolin Monk", "Superleap."));
+
+        List<CardDiff.Change> changes = CardDiff.compare(oldCards, newCards);
+        assertEquals("changes", 3, changes.size());
+        assertEquals(CardDiff.Kind.CHANGED, changes.get(0).getKind());
+        assertEquals("changed fields", 1, changes.get(0).getFields().size());
+        assertEquals("Guts. Superleap.", changes.get(0).getFields().get("rules")[1]);
+        assertEquals(CardDiff.Kind.ADDED, changes.get(1).getKind());
+        assertEquals("Shaolin Monk", changes.get(1).getCard().get("title"));
+        assertEquals(CardDiff.Kind.REMOVED, changes.get(2).getKind());
+        assertEquals("Golden Comeback", changes.get(2).getCard().get("title"));
+    }
+
+    @Test
+    public void testMseSetCardsCompareWithSpreadsheetCards() throws IOException
+    {
+        String set = "mse version: 0.3.8\n"
+            + "game: shadowfist\n"
+            + "set info:\n"
+            + "\tsymbol:\n"
+            + "card:\n"
+            + "\thas styling: false\n"
+            + "\ttime created: 2016-07-28 15:08:54\n"
+            + "\ttitle: All the Power\n"
+            + "\tsubtitle: Edge\n"
+            + "\trules:\n"
+            + "\t\tIf you have 50 Power in your pool,\n"
+            + "\t\twin the game.\n"
+            + "\tcopyright: playtest round 1\n";
+        final List<Map<String, String>> oldCards = new ArrayList<>();
+        MseSetReader.parse(new StringReader(set), new MseSetReader.CardHandler()
+        {
+            @Override
+            public void card(Map<String, String> fields)
+            {
+                oldCards.add(fields);
+            }
+        });
+        assertEquals("cards", 1, oldCards.size());
+        assertEquals("If you have 50 Power in your pool,\nwin the game.", oldCards.get(0).get("rules"));
+
+        Map<String, String> newCard = new LinkedHashMap<>(oldCards.get(0));
+        newCard.put("copyright", "playtest round 2");
+        List<Map<String, String>> newCards = new ArrayList<>();
+        newCards.add(newCard);
+        assertTrue("copyright is not compared", CardDiff.compare(oldCards, newCards).isEmpty());
+    }
+
+}
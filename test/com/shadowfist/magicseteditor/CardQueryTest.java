@@ -0,0 +1,63 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CardQueryTest
+{
+    private static final List<List<String>> RECORDS = new ArrayList<>();
+    static
+    {
+        RECORDS.add(CSVUtils.parseLine("Gambling House,,Lotus,Character,3,m,,1,,Guts. Superleap.,,cgreene"));
+        RECORDS.add(CSVUtils.parseLine("Pagoda,,Lotus,Feng Shui Site,,,,,6,,,jsmith"));
+        RECORDS.add(CSVUtils.parseLine("Golden Comeback,,Hand,Event,1,,,,,Toast It.,,cgreene"));
+        RECORDS.add(CSVUtils.parseLine("Shaolin Monk,,Hand,Character,2,c,2,,,Superleap.,,jsmith"));
+    }
+
+    private static BitSet select(String expression)
+    {
+        return CardQuery.parse(expression).evaluate(new CardIndex(RECORDS));
+    }
+
+    private static BitSet bits(int... positions)
+    {
+        BitSet bits = new BitSet();
+        for (int position : positions)
+        {
+            bits.set(position);
+        }
+        return bits;
+    }
+
+    @Test
+    public void testAndOfTwoFields()
+    {
+        assertEquals(bits(0), select("faction=Lotus and type=Character"));
+    }
+
+    @Test
+    public void testOrAndNotWithParenthesesAndQuotes()
+    {
+        assertEquals(bits(1, 3), select("type=\"Feng Shui Site\" or not (faction=lotus or type=event)"));
+    }
+
+    @Test
+    public void testDesignerAndKeywordIndexes()
+    {
+        assertEquals(bits(0, 2), select("designer=cgreene"));
+        assertEquals(bits(0, 3), select("keyword=Superleap"));
+        assertEquals(bits(2), select("keyword=\"Toast It\""));
+        assertEquals(bits(1, 2, 3), select("keyword!=Guts"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFieldIsRejected()
+    {
+        CardQuery.parse("colour=red");
+    }
+}
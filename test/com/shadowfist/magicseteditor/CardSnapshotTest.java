@@ -0,0 +1,76 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CardSnapshotTest
+{
+
+    @Test
+    public void testRoundTripKeepsValuesAndShortRecords() throws IOException
+    {
+        List<List<String>> records = new ArrayList<>();
+        records.add(CSVUtils.parseLine("Gambling House,,Lotus,Character,3,m,,1,,\"Guts, Superleap.\",Jo \u00C9lan,cgreene"));
+        records.add(Arrays.asList("Short", "Row"));
+        records.add(CSVUtils.parseLine("Pagoda,,Lotus,Feng Shui Site,,,,,6,,,cgreene"));
+
+        Path file = Files.createTempFile("cards", ".sfcs");
+        // a mapped file can't be deleted on Windows until the mapping is collected
+        file.toFile().deleteOnExit();
+
+        CardSnapshot.write(records, file);
+        assertTrue("snapshot", CardSnapshot.isSnapshot(file));
+
+        List<List<String>> read = CardSnapshot.read(file);
+        assertEquals("records", records, read);
+        assertEquals("short row", 2, read.get(1).size());
+    }
+
+    @Test
+    public void testCorruptStringIdFailsWhenOpened() throws IOException
+    {
+        List<List<String>> records = new ArrayList<>();
+        records.add(Arrays.asList("Pagoda", "", "Lotus"));
+        Path file = Files.createTempFile("cards", ".sfcs");
+        file.toFile().deleteOnExit();
+        CardSnapshot.write(records, file);
+
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer.wrap(bytes).putInt(CardSnapshot.HEADER_SIZE + 4, 1000);
+        Files.write(file, bytes);
+        try
+        {
+            CardSnapshot.read(file);
+            fail("corrupt snapshot was opened");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("corrupt"));
+        }
+    }
+
+    @Test
+    public void testCsvFileIsNotASnapshot() throws IOException
+    {
+        Path file = Files.createTempFile("cards", ".csv");
+        try
+        {
+            Files.write(file, "Title,Subtitle,Faction,CardType,Cost\n".getBytes("UTF-8"));
+            assertFalse(CardSnapshot.isSnapshot(file));
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+}
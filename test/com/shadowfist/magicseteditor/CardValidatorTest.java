@@ -0,0 +1,97 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.shadowfist.magicseteditor.ValidationReport.Issue;
+import com.shadowfist.magicseteditor.ValidationReport.Severity;
+
+public class CardValidatorTest
+{
+
+    private static ValidationReport validate(String... lines)
+    {
+        List<List<String>> records = new ArrayList<>();
+        int[] rows = new int[lines.length];
+        for (int i = 0; i < lines.length; i++)
+        {
+            records.add(CSVUtils.parseLine(lines[i]));
+            rows[i] = i + 2;
+        }
+        return CardValidator.validate("test", records, rows);
+    }
+
+    private static boolean has(ValidationReport report, int row, Severity severity, String message)
+    {
+        for (Issue issue : report.getIssues())
+        {
+            if (issue.getRow() == row && issue.getSeverity() == severity && issue.getMessage().contains(message))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testValidCardsHaveNoIssues()
+    {
+        ValidationReport report = validate("Gambling House,,Lotus,Character,3,m,,1,,Guts. <Netherworld>.,,cgreene",
+            "Pagoda,,Lotus,Feng Shui Site,,,,,6,<Netherworld> Superleap.,,cgreene");
+        assertEquals(report.getIssues().toString(), 0, report.getIssues().size());
+        assertTrue(report.isValid());
+    }
+
+    @Test
+    public void testShortRowIsAnErrorAndOtherRowsAreStillChecked()
+    {
+        ValidationReport report = validate("Gambling House,,Lotus,Character,3",
+            "Pagoda,,Lotuss,Feng Shui Site,,W,,,6,Toughnes: 1.,,cgreene");
+        assertFalse(report.isValid());
+        assertTrue("short", has(report, 2, Severity.ERROR, "columns"));
+        assertTrue("faction", has(report, 3, Severity.WARNING, "Unknown faction"));
+        assertTrue("resource", has(report, 3, Severity.WARNING, "W is the MSE code"));
+        assertTrue("keyword", has(report, 3, Severity.WARNING, "did you mean Toughness"));
+    }
+
+    @Test
+    public void testStrayMarkupAndRareDesignators()
+    {
+        ValidationReport report = validate("A,,Lotus,Event,1,,,,,Smoke a <Netherworld> card.,,cgreene",
+            "B,,Lotus,Event,1,,,,,Smoke a <Netherworld> card.,,cgreene",
+            "C,,Lotus,Event,1,,,,,Smoke a <Netherwold> card or a <Fire character.,,cgreene");
+        assertTrue("markup", has(report, 4, Severity.ERROR, "isn't part of a <Designator>"));
+        assertTrue("designator", has(report, 4, Severity.WARNING, "did you mean <Netherworld>"));
+        assertTrue("json", report.toJson().contains("\"severity\": \"error\""));
+    }
+
+    @Test
+    public void testSlicedReportIsTheSameEveryRun()
+    {
+        // enough rows for four slices, with a misspelled designator in each
+        List<List<String>> records = new ArrayList<>();
+        int[] rows = new int[4 * CardValidator.SLICE_SIZE];
+        for (int i = 0; i < rows.length; i++)
+        {
+            int slice = i / CardValidator.SLICE_SIZE;
+            String designator = (i % CardValidator.SLICE_SIZE == 7)? "Netherwold" + (char) ('a' + slice)
+                : "Netherworld";
+            records.add(CSVUtils.parseLine("Card " + i + ",,Lotuss,Event,1,,,,,Smoke a <" + designator
+                + "> card.,,cgreene"));
+            rows[i] = i + 2;
+        }
+
+        ValidationReport expected = CardValidator.validate("test", records, rows, 1);
+        assertTrue("designator", has(expected, 9, Severity.WARNING, "did you mean <Netherworld>"));
+        for (int run = 0; run < 20; run++)
+        {
+            ValidationReport report = CardValidator.validate("test", records, rows, 4);
+            assertEquals("run " + run, expected.getIssues().toString(), report.getIssues().toString());
+        }
+    }
+
+}
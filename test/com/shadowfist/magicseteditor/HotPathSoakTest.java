@@ -0,0 +1,147 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the per-card hot path, {@link CSVUtils#parseLine(String)} and
+ * {@link Main#toFormattedText(String)}, over a large number of cards and
+ * fails if it takes more time or allocates more memory than its budget.
+ * The budgets are several times what the current code needs, so they catch
+ * a regression of an order of magnitude, not noise. Allocation is only
+ * checked on JVMs that can count it per thread.
+ * <p>
+ * It takes a while, so it only runs when asked for:
+ *
+ * <pre>
+ * -Dsoak=true
+ * </pre>
+ */
+public class HotPathSoakTest
+{
+    private static final int CARDS = 100000;
+    private static final long TIME_BUDGET_MS = 10000;
+
+    private static final String[] LINES = {
+        "Gambling House,,Lotus,Character,3,m,,1,,Guts. <Netherworld>.,Some Artist,cgreene",
+        "\"All the Power\",Edge,,Edge,4,,,,,\"If you have 50 Power in your pool, win the game.\",,\"designer, the\"",
+        "Bei Kong,,Monarchs,Character,5,\"f,f\",6,,,\"Toughness: 1. Superleap. When Bei Kong enters play, smoke a \"\"Demon\"\".\",,x",
+    };
+    private static final String[] RULES = {
+        "Guts. <Netherworld>. Toughness: 1.",
+        "Not Cumulative. All <Fire> and <Netherworld> are smoked. If you have 50 Power in your pool, win the game.",
+        "Unique. Assassinate. Superleap. When this card enters play, turn target character with <Student> designator.",
+    };
+
+    @Before
+    public void setUp()
+    {
+        assumeTrue(Boolean.getBoolean("soak"));
+    }
+
+    /**
+     * @return the bytes allocated by this thread so far, or -1 if the JVM
+     *         can't tell
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+            if (counting.isThreadAllocatedMemorySupported() && counting.isThreadAllocatedMemoryEnabled())
+            {
+                return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static void assertWithinBudget(String what, long start, long startAllocated, long bytesPerCard)
+    {
+        long millis = (System.nanoTime() - start) / 1000000;
+        long allocated = allocatedBytes() - startAllocated;
+        String report = what + ": " + CARDS + " cards in " + millis + "ms, " + ((startAllocated >= 0)? allocated / CARDS
+            + " bytes per card" : "allocation not counted");
+        assertTrue(report, millis < TIME_BUDGET_MS);
+        if (startAllocated >= 0)
+        {
+            assertTrue(report, allocated / CARDS < bytesPerCard);
+        }
+    }
+
+    @Test
+    public void testParseLineSoak()
+    {
+        // warm up so the budget measures compiled code
+        for (int i = 0; i < 20000; i++)
+        {
+            CSVUtils.parseLine(LINES[i % LINES.length]);
+        }
+
+        long fields = 0;
+        long startAllocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < CARDS; i++)
+        {
+            List<String> record = CSVUtils.parseLine(LINES[i % LINES.length]);
+            fields += record.size();
+        }
+        assertWithinBudget("parseLine", start, startAllocated, 8 * 1024);
+        assertEquals(12L * CARDS, fields);
+    }
+
+    @Test
+    public void testToFormattedTextSoak()
+    {
+        for (int i = 0; i < 20000; i++)
+        {
+            Main.toFormattedText(RULES[i % RULES.length]);
+        }
+
+        long length = 0;
+        long startAllocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < CARDS; i++)
+        {
+            length += Main.toFormattedText(RULES[i % RULES.length]).toString().length();
+        }
+        assertWithinBudget("toFormattedText", start, startAllocated, 8 * 1024);
+        assertTrue(length > 0);
+    }
+
+    @Test
+    public void testHugeFieldsStayLinear()
+    {
+        Random random = new Random(38);
+        StringBuilder rules = new StringBuilder();
+        while (rules.length() < 1000000)
+        {
+            rules.append(RULES[random.nextInt(RULES.length)]).append(' ');
+        }
+        String text = rules.toString();
+        String line = "Title,\"" + text.replace("\"", "\"\"") + "\",x";
+
+        long startAllocated = allocatedBytes();
+        long start = System.nanoTime();
+        assertEquals(text, CSVUtils.parseLine(line).get(1));
+        Main.toFormattedText(text);
+        long millis = (System.nanoTime() - start) / 1000000;
+        long allocated = allocatedBytes() - startAllocated;
+        String report = "1MB field in " + millis + "ms, " + allocated / text.length() + " bytes per char";
+        assertTrue(report, millis < TIME_BUDGET_MS);
+        if (startAllocated >= 0)
+        {
+            // a few copies of the text and the buffers growing to it
+            assertTrue(report, allocated / text.length() < 64);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImageWorkspaceTest
+{
+    private Path root;
+    private List<ImageWorkspace> workspaces = new ArrayList<>();
+    private List<Path> temporary = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        root = Files.createTempDirectory("imageworkspace");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        for (ImageWorkspace workspace : workspaces)
+        {
+            workspace.close();
+        }
+        for (Path directory : temporary)
+        {
+            Main.deleteDirectory(directory);
+        }
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(root))
+        {
+            for (Path directory : directories)
+            {
+                Main.deleteDirectory(directory);
+            }
+        }
+        Files.deleteIfExists(root);
+    }
+
+    private ImageWorkspace open(long maxSize) throws IOException
+    {
+        ImageWorkspace workspace = ImageWorkspace.open(root, maxSize);
+        workspaces.add(workspace);
+        return workspace;
+    }
+
+    private Path temporaryDirectory(long age) throws IOException
+    {
+        Path directory = Files.createTempDirectory("mse-images");
+        temporary.add(directory);
+        writeImage(directory, "001-old.jpg", 10);
+        FileTime modified = FileTime.fromMillis(System.currentTimeMillis() - age);
+        Files.setLastModifiedTime(directory.resolve("001-old.jpg"), modified);
+        Files.setLastModifiedTime(directory, modified);
+        return directory;
+    }
+
+    private static void writeImage(Path directory, String name, int size) throws IOException
+    {
+        Files.write(directory.resolve(name), new byte[size]);
+    }
+
+    @Test
+    public void testSetReusesItsDirectory() throws IOException
+    {
+        ImageWorkspace workspace = open(1000);
+        Path set = Paths.get("out", "playtest.mse-set");
+        Path first = workspace.acquire(set);
+        assertTrue(Files.exists(first.resolve(ImageWorkspace.MARKER)));
+        writeImage(first, "001-All the Power.jpg", 100);
+        workspace.release(first, true);
+        assertFalse(Files.exists(first.resolve(ImageWorkspace.MARKER)));
+        assertEquals(100, workspace.getIdleSize());
+
+        Path second = workspace.acquire(set);
+        assertEquals(first, second);
+        assertTrue(Files.exists(second.resolve("001-All the Power.jpg")));
+        assertEquals(0, workspace.getIdleSize());
+        assertFalse(second.equals(workspace.acquire(Paths.get("out", "other.mse-set"))));
+        try
+        {
+            workspace.acquire(set);
+            fail("acquired twice");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("already being exported"));
+        }
+        workspace.release(second, false);
+        assertFalse(Files.exists(second));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedAreEvicted() throws IOException
+    {
+        ImageWorkspace workspace = open(250);
+        Path a = workspace.acquire(Paths.get("a.mse-set"));
+        Path b = workspace.acquire(Paths.get("b.mse-set"));
+        Path c = workspace.acquire(Paths.get("c.mse-set"));
+        writeImage(a, "001-a.jpg", 100);
+        writeImage(b, "001-b.jpg", 100);
+        writeImage(c, "001-c.jpg", 100);
+        workspace.release(a, true);
+        workspace.release(b, true);
+
+        // using a again makes b the least recently used
+        workspace.release(workspace.acquire(Paths.get("a.mse-set")), true);
+        workspace.release(c, true);
+        assertTrue(Files.exists(a));
+        assertFalse(Files.exists(b));
+        assertTrue(Files.exists(c));
+        assertEquals(200, workspace.getIdleSize());
+
+        workspace.setMaxSize(0);
+        assertFalse(Files.exists(a));
+        assertFalse(Files.exists(c));
+        assertEquals(0, workspace.getIdleSize());
+    }
+
+    @Test
+    public void testOrphansAreDeletedOnOpen() throws IOException
+    {
+        Path orphan = Files.createDirectory(root.resolve("crashed.mse-set-00000000"));
+        Files.createFile(orphan.resolve(ImageWorkspace.MARKER));
+        writeImage(orphan, "001-half-written.jpg", 10);
+        writeImage(Files.createDirectory(orphan.resolve("nested")), "001-nested.jpg", 10);
+        Path kept = Files.createDirectory(root.resolve("finished.mse-set-00000000"));
+        writeImage(kept, "001-done.jpg", 10);
+
+        ImageWorkspace workspace = open(1000);
+        assertFalse(Files.exists(orphan));
+        assertTrue(Files.exists(kept.resolve("001-done.jpg")));
+        assertEquals(10, workspace.getIdleSize());
+    }
+
+    @Test
+    public void testSizeIsOnlySetWhenFirstOpened() throws IOException
+    {
+        ImageWorkspace workspace = open(1000);
+        Path set = workspace.acquire(Paths.get("playtest.mse-set"));
+        writeImage(set, "001-All the Power.jpg", 100);
+        workspace.release(set, true);
+
+        assertSame(workspace, open(0));
+        assertTrue(Files.exists(set));
+        assertEquals(100, workspace.getIdleSize());
+
+        workspace.close();
+        ImageWorkspace reopened = open(0);
+        assertNotSame(workspace, reopened);
+        assertFalse(Files.exists(set));
+    }
+
+    @Test
+    public void testOnlyAbandonedTemporaryDirectoriesAreDeleted() throws IOException
+    {
+        Path recent = temporaryDirectory(0);
+        Path abandoned = temporaryDirectory(2 * ImageWorkspace.ABANDONED_AGE);
+        Path locked = temporaryDirectory(2 * ImageWorkspace.ABANDONED_AGE);
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 2 * ImageWorkspace.ABANDONED_AGE);
+        Files.setLastModifiedTime(Files.createFile(locked.resolve(ImageWorkspace.MARKER)), old);
+        Files.setLastModifiedTime(locked, old);
+
+        try (FileChannel channel = FileChannel.open(locked.resolve(ImageWorkspace.MARKER), StandardOpenOption.WRITE);
+            FileLock lock = channel.lock())
+        {
+            open(1000);
+        }
+        assertTrue(Files.exists(recent.resolve("001-old.jpg")));
+        assertFalse(Files.exists(abandoned));
+        assertTrue(Files.exists(locked.resolve("001-old.jpg")));
+    }
+
+    @Test
+    public void testImagesAreListedInOrder() throws IOException
+    {
+        Path directory = Files.createDirectory(root.resolve("list"));
+        writeImage(directory, "010-j.jpg", 1);
+        writeImage(directory, "002-b.jpg", 1);
+        writeImage(directory, "001-a.jpg", 1);
+        Files.createFile(directory.resolve(ImageWorkspace.MARKER));
+        assertEquals(Arrays.asList(directory.resolve("001-a.jpg"), directory.resolve("002-b.jpg"),
+            directory.resolve("010-j.jpg")), Main.listImages(directory));
+    }
+}
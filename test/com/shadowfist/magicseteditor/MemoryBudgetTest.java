@@ -0,0 +1,62 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest
+{
+
+    @Test
+    public void testSharesAreCappedAtTheBudget() throws InterruptedException
+    {
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        int share = budget.acquire(10L * 1024 * 1024);
+        assertEquals("whole budget", 1024, share);
+        assertEquals(0, budget.getAvailableBytes());
+        budget.release(share);
+        assertEquals(budget.getBytes(), budget.getAvailableBytes());
+    }
+
+    @Test
+    public void testWorkWaitsForSharedBudget() throws InterruptedException
+    {
+        final MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        int first = budget.acquire(768 * 1024);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread other = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    budget.release(budget.acquire(512 * 1024));
+                    acquired.countDown();
+                }
+                catch (InterruptedException e)
+                {
+                    // test over
+                }
+            }
+        });
+        other.start();
+        assertFalse("waits while the budget is used", acquired.await(200, TimeUnit.MILLISECONDS));
+        budget.release(first);
+        assertTrue("runs once it's given back", acquired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBuildsFromOneConfigShareItsBudget() throws Exception
+    {
+        BuildConfig template = BuildConfig.builder().mseSetFile(Paths.get("unused.mse-set")).build();
+        assertNull(template.getArtworkMemory());
+        MemoryBudget shared = new MemoryBudget(1024 * 1024);
+        BuildConfig config = template.toBuilder().artworkMemory(shared).build();
+        assertSame("copied to every build", shared, config.toBuilder().inputUrl(null).build().getArtworkMemory());
+    }
+}
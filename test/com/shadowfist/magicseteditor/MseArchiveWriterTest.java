@@ -0,0 +1,279 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+public class MseArchiveWriterTest
+{
+
+    private static byte[] read(ZipFile zip, String name) throws IOException
+    {
+        ZipEntry entry = zip.getEntry(name);
+        assertNotNull(name, entry);
+        try (InputStream in = zip.getInputStream(entry))
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    public void testCopiedEntriesAreReadable() throws IOException
+    {
+        byte[] image = new byte[10000];
+        for (int i = 0; i < image.length; i++)
+        {
+            image[i] = (byte) (i * 31 % 251);
+        }
+
+        // an mse-set written the old way, with data descriptors
+        Path previous = Files.createTempFile("previous", ".mse-set");
+        Path written = Files.createTempFile("written", ".mse-set");
+        try
+        {
+            try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(previous.toFile())))
+            {
+                out.putNextEntry(new ZipEntry("set"));
+                out.write("old set".getBytes("UTF-8"));
+                out.closeEntry();
+                out.putNextEntry(new ZipEntry("image1"));
+                out.write(image);
+                out.closeEntry();
+            }
+
+            List<String> copied;
+            try (MseArchiveWriter out = new MseArchiveWriter(new FileOutputStream(written.toFile())))
+            {
+                out.addEntry("set", "new set".getBytes("UTF-8"));
+                out.addStoredEntry("art.jpg", image);
+                copied = out.copyRawEntries(previous, Arrays.asList("set"));
+            }
+            assertEquals("copied", Arrays.asList("image1"), copied);
+
+            try (ZipFile zip = new ZipFile(written.toFile()))
+            {
+                assertEquals("entries", 3, zip.size());
+                assertEquals("stored", ZipEntry.STORED, zip.getEntry("art.jpg").getMethod());
+                assertArrayEquals("art", image, read(zip, "art.jpg"));
+                assertEquals("new set", new String(read(zip, "set"), "UTF-8"));
+                assertArrayEquals("image", image, read(zip, "image1"));
+            }
+        }
+        finally
+        {
+            Files.delete(previous);
+            Files.delete(written);
+        }
+    }
+
+    /** Text-like data that deflates about as well as a set file. */
+    private static byte[] text(Random random, int size)
+    {
+        String[] words = { "card:", "title:", "Lotus", "Character", "fighting:", "Netherworld", "Guts", "\n\t" };
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size)
+        {
+            text.append(words[random.nextInt(words.length)]).append(' ').append(random.nextInt(1000));
+        }
+        text.setLength(size);
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Writes the entries, stored if odd, and returns how long it took in nanoseconds. */
+    private static long write(Path file, List<byte[]> data, ExecutorService executor) throws IOException
+    {
+        long start = System.nanoTime();
+        try (MseArchiveWriter out = new MseArchiveWriter(new FileOutputStream(file.toFile()), executor))
+        {
+            for (int i = 0; i < data.size(); i++)
+            {
+                if (i % 2 == 1)
+                {
+                    out.addStoredEntry("image" + i, data.get(i));
+                }
+                else
+                {
+                    out.addEntry("entry" + i, data.get(i), (i % 4 == 0)? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION);
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Writes the same entries with a ZipOutputStream and returns how long it took in nanoseconds. */
+    private static long writeZip(Path file, List<byte[]> data) throws IOException
+    {
+        long start = System.nanoTime();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file.toFile())))
+        {
+            for (int i = 0; i < data.size(); i++)
+            {
+                ZipEntry entry = new ZipEntry(((i % 2 == 1)? "image" : "entry") + i);
+                if (i % 2 == 1)
+                {
+                    CRC32 crc = new CRC32();
+                    crc.update(data.get(i));
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.get(i).length);
+                    entry.setCrc(crc.getValue());
+                }
+                else
+                {
+                    out.setLevel((i % 4 == 0)? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION);
+                }
+                out.putNextEntry(entry);
+                out.write(data.get(i));
+                out.closeEntry();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** About 15 MB of entries, half of them stored, and an empty one. */
+    private static List<byte[]> entries()
+    {
+        Random random = new Random(37);
+        List<byte[]> data = new ArrayList<>();
+        for (int i = 0; i < 150; i++)
+        {
+            data.add(text(random, 1000 + random.nextInt(200000)));
+        }
+        data.add(new byte[0]);
+        return data;
+    }
+
+    @Test
+    public void testParallelArchiveMatchesSequential() throws Exception
+    {
+        List<byte[]> data = entries();
+        Path sequential = Files.createTempFile("sequential", ".mse-set");
+        Path parallel = Files.createTempFile("parallel", ".mse-set");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            write(sequential, data, null);
+            write(parallel, data, executor);
+
+            try (ZipFile expected = new ZipFile(sequential.toFile()); ZipFile actual = new ZipFile(parallel.toFile()))
+            {
+                assertEquals(data.size(), actual.size());
+                Enumeration<? extends ZipEntry> e = expected.entries();
+                Enumeration<? extends ZipEntry> a = actual.entries();
+                for (int i = 0; i < data.size(); i++)
+                {
+                    ZipEntry entry = a.nextElement();
+                    assertEquals("order", e.nextElement().getName(), entry.getName());
+                    assertEquals(entry.getName(), (i % 2 == 1)? ZipEntry.STORED : ZipEntry.DEFLATED, entry.getMethod());
+                    assertArrayEquals(entry.getName(), data.get(i), read(actual, entry.getName()));
+                }
+            }
+
+            // read front to back, checking every local header is where the central directory says
+            try (ZipInputStream in = new ZipInputStream(Files.newInputStream(parallel)))
+            {
+                for (int i = 0; i < data.size(); i++)
+                {
+                    ZipEntry entry = in.getNextEntry();
+                    assertNotNull(entry);
+                    assertEquals(((i % 2 == 1)? "image" : "entry") + i, entry.getName());
+                }
+                assertNull(in.getNextEntry());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+            Files.delete(sequential);
+            Files.delete(parallel);
+        }
+    }
+
+    @Test
+    public void testParallelArchiveIsFasterThanZipOutputStream() throws Exception
+    {
+        // with one processor there is nothing to run in parallel
+        assumeTrue(Runtime.getRuntime().availableProcessors() >= 2);
+        List<byte[]> data = entries();
+        Path baseline = Files.createTempFile("baseline", ".mse-set");
+        Path parallel = Files.createTempFile("parallel", ".mse-set");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            // once to warm up, then the best of three so a busy moment doesn't decide it
+            long baselineTime = Long.MAX_VALUE;
+            long parallelTime = Long.MAX_VALUE;
+            for (int run = 0; run < 4; run++)
+            {
+                long zip = writeZip(baseline, data);
+                long archive = write(parallel, data, executor);
+                if (run > 0)
+                {
+                    baselineTime = Math.min(baselineTime, zip);
+                    parallelTime = Math.min(parallelTime, archive);
+                }
+            }
+            assertTrue("parallel " + parallelTime / 1000000 + " ms, ZipOutputStream " + baselineTime / 1000000 + " ms",
+                parallelTime < baselineTime);
+        }
+        finally
+        {
+            executor.shutdown();
+            Files.delete(baseline);
+            Files.delete(parallel);
+        }
+    }
+
+    @Test
+    public void testDuplicateNameIsRejectedBeforeWriting() throws IOException
+    {
+        Path written = Files.createTempFile("duplicate", ".mse-set");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (MseArchiveWriter out = new MseArchiveWriter(new FileOutputStream(written.toFile()), executor))
+        {
+            out.addEntry("set", "set".getBytes("UTF-8"));
+            try
+            {
+                out.addStoredEntry("set", new byte[1]);
+                fail("added twice");
+            }
+            catch (IOException e)
+            {
+                assertTrue(e.getMessage(), e.getMessage().contains("set"));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+            Files.delete(written);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.CancellationException;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MseProcessTest
+{
+    /** Stands in for MSE: answers each line by echoing it, except "hang" and "quit". */
+    private static final String FAKE_MSE = "#!/bin/sh\n"
+        + "while read line; do\n"
+        + "  case \"$line\" in\n"
+        + "    hang) exec sleep 30 ;;\n"
+        + "    quit) exit 3 ;;\n"
+        + "    *) echo \"$line\" ;;\n"
+        + "  esac\n"
+        + "done\n";
+
+    private Path directory;
+    private Path mseExe;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        Assume.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+        directory = Files.createTempDirectory("mseprocess");
+        mseExe = directory.resolve("mse");
+        Files.write(mseExe, FAKE_MSE.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(mseExe, PosixFilePermissions.fromString("rwx------"));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        if (directory != null)
+        {
+            Files.deleteIfExists(mseExe);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private BuildContext context(int mseTimeout)
+    {
+        return new BuildContext(BuildConfig.builder().mseSetFile(directory.resolve("test.mse-set"))
+            .mseTimeout(mseTimeout).build());
+    }
+
+    @Test
+    public void testCommandIsAnswered() throws IOException
+    {
+        try (MseProcess mse = MseProcess.start(mseExe, directory.resolve("test.mse-set"), context(5000)))
+        {
+            assertEquals("length(set.cards)", mse.command("length(set.cards)"));
+            assertEquals("second", mse.command("second"));
+        }
+    }
+
+    @Test
+    public void testCommandTimesOut() throws IOException
+    {
+        MseProcess mse = MseProcess.start(mseExe, directory.resolve("test.mse-set"), context(300));
+        long start = System.nanoTime();
+        try
+        {
+            mse.command("hang");
+            fail("answered");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("within 300ms"));
+        }
+        finally
+        {
+            mse.close();
+        }
+        // the hung process is killed instead of waited for
+        assertTrue("exited", mse.getExitValue() != null);
+        assertTrue("took too long", System.nanoTime() - start < MseProcess.EXIT_TIMEOUT * 1000000L);
+    }
+
+    @Test
+    public void testExitStatusIsReported() throws IOException
+    {
+        try (MseProcess mse = MseProcess.start(mseExe, directory.resolve("test.mse-set"), context(5000)))
+        {
+            mse.command("quit");
+            fail("answered");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("exit status 3"));
+        }
+    }
+
+    @Test(expected = CancellationException.class)
+    public void testCancelStopsWaiting() throws IOException
+    {
+        final BuildContext context = context(60000);
+        try (MseProcess mse = MseProcess.start(mseExe, directory.resolve("test.mse-set"), context))
+        {
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep(300);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // cancel now
+                    }
+                    context.cancel();
+                }
+            }).start();
+            mse.command("hang");
+        }
+    }
+}
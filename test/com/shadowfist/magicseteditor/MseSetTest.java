@@ -0,0 +1,145 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+public class MseSetTest
+{
+    private static final String SET = "mse version: 0.3.8\n"
+        + "game: shadowfist\n"
+        + "stylesheet: fullblank\n"
+        + "set info:\n"
+        + "\tsymbol:\n"
+        + "card:\n"
+        + "\thas styling: true\n"
+        + "\tnotes: Keep this art\n"
+        + "\ttime created: 2016-07-28 15:08:54\n"
+        + "\ttime modified: 2016-07-28 15:14:50\n"
+        + "\ttitle: All the Power\n"
+        + "\tpower: 2\n"
+        + "\timage: image1\n"
+        + "\tsubtitle: Edge\n"
+        + "\trules: If you have 50 Power in your pool, win the game.\n"
+        + "\tstyling data:\n"
+        + "\t\tframe: gold\n"
+        + "\t\t\tborder: thick\n"
+        + "card:\n"
+        + "\thas styling: false\n"
+        + "\tnotes:\n"
+        + "\ttime created: 2016-07-28 15:14:59\n"
+        + "\ttime modified: 2016-07-28 15:17:00\n"
+        + "\ttitle: Designer Only\n"
+        + "\tsubtitle:\n"
+        + "\trules:\n"
+        + "\t\tFirst line.\n"
+        + "\t\tSecond line.\n"
+        + "apprentice code:\n";
+
+    @Test
+    public void testRoundTripKeepsTheSetText() throws IOException
+    {
+        assertEquals(SET, MseSet.parse(new StringReader(SET)).toText("2017-01-19 13:00:00"));
+    }
+
+    @Test
+    public void testMergeUpdatesMatchingCardsOnly() throws IOException
+    {
+        MseSet set = MseSet.parse(new StringReader(SET));
+        List<Map<String, String>> cards = new ArrayList<>();
+        Map<String, String> update = new LinkedHashMap<>();
+        update.put("title", "All the Power");
+        update.put("image", "");
+        update.put("subtitle", "Edge");
+        update.put("rules", "If you have 40 Power in your pool, win the game.");
+        cards.add(update);
+        Map<String, String> added = new LinkedHashMap<>();
+        added.put("title", "Brand New");
+        added.put("subtitle", "");
+        added.put("rules", "");
+        cards.add(added);
+
+        set.merge(cards, "2017-01-19 13:00:00");
+        assertEquals("updated", 1, set.getUpdated());
+        assertEquals("added", 1, set.getAdded());
+
+        String text = set.toText("2017-01-19 13:00:00");
+        assertTrue("rules", text.contains("\trules: If you have 40 Power in your pool, win the game.\n"));
+        assertFalse("power removed", text.contains("\tpower:"));
+        assertTrue("notes kept", text.contains("\tnotes: Keep this art\n"));
+        assertTrue("image kept", text.contains("\timage: image1\n"));
+        assertTrue("styling kept", text.contains("\t\tframe: gold\n\t\t\tborder: thick\n"));
+        assertTrue("modified", text.contains("\ttime modified: 2017-01-19 13:00:00\n\ttitle: All the Power\n"));
+        assertTrue("other card kept", text.contains("\t\tFirst line.\n\t\tSecond line.\n"));
+        assertTrue("added after last card", text.indexOf("\ttitle: Brand New\n") < text.indexOf("apprentice code:"));
+    }
+
+    @Test
+    public void testMergeKeepsBlocksAndUnchangedCardsAsRead() throws IOException
+    {
+        String card = "card:\n"
+            + "\ttitle: Hand Styled\n"
+            + "\trules: Toughness: 1.\n"
+            + "\tstyling data:\n"
+            + "\t\tframe: gold\n";
+        String untouched = "card:\n"
+            + "\ttitle: Untouched\n"
+            + "\tnotes:\n"
+            + "\t\tFirst line.\n"
+            + "\n"
+            + "\t\tThird line.\n";
+        String set = "mse version: 0.3.8\n" + card + untouched;
+        assertEquals("round trip", set, MseSet.parse(new StringReader(set)).toText("2017-01-19 13:00:00"));
+
+        MseSet merged = MseSet.parse(new StringReader(set));
+        Map<String, String> update = new LinkedHashMap<>();
+        update.put("title", "Hand Styled");
+        update.put("subtitle", "");
+        update.put("rules", "Toughness: 2.");
+        merged.merge(Collections.singletonList(update), "2017-01-19 13:00:00");
+        assertEquals("updated", 1, merged.getUpdated());
+
+        String text = merged.toText("2017-01-19 13:00:00");
+        assertTrue(text, text.contains("\trules: Toughness: 2.\n\tstyling data:\n\t\tframe: gold\n"));
+        assertTrue(text, text.endsWith(untouched));
+    }
+
+    @Test
+    public void testUnusedArtworkIsFound() throws IOException
+    {
+        String used = "0123456789abcdef0123456789abcdef01234567.jpg";
+        String unused = "fedcba9876543210fedcba9876543210fedcba98.jpg";
+        Path file = Files.createTempFile("set", ".mse-set");
+        try
+        {
+            try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file)))
+            {
+                for (String name : Arrays.asList("set", "image1", used, unused))
+                {
+                    zip.putNextEntry(new ZipEntry(name));
+                    zip.closeEntry();
+                }
+            }
+            String setData = SET.replace("\timage: image1\n", "\timage: " + used + "\n");
+            assertEquals(Collections.singleton(unused), Main.unusedArtwork(file, setData));
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link Main#toFormattedText(String)} against a slow reference
+ * formatter on random rules text. A failure names the seed, so it can be
+ * reproduced with <code>new Random(seed)</code>.
+ */
+public class PatternFuzzTest
+{
+    private static final int RUNS = 5000;
+    private static final List<String> KEYWORDS = Arrays.asList(Main.PATTERN_BFA.pattern().replaceAll("[()]", "")
+        .split("\\|"));
+    private static final String[] PIECES = { " ", ". ", ", ", ": ", "<", ">", "<Fire>", "<Netherworld>", "<Student_2>",
+        "<Fi re>", "<>", "<<Guts>>", "Gut", "Uniqueness", "No  Max", "NoMax", "toughness", "$1", "\\", "\u00e9",
+        "\ud83d\udc09", "<\u00c9lan>", "1", "Character", "\n" };
+
+    private static boolean isWordChar(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * Formats the way the rules text is meant to be: first every
+     * &lt;Designator&gt; of letters, digits and underscores in italics, then
+     * every keyword in bold, taking the first keyword in the list that
+     * matches at each position.
+     */
+    static String referenceFormat(String text)
+    {
+        StringBuilder italic = new StringBuilder();
+        int i = 0;
+        while (i < text.length())
+        {
+            if (text.charAt(i) == '<')
+            {
+                int end = i + 1;
+                while (end < text.length() && isWordChar(text.charAt(end)))
+                {
+                    end++;
+                }
+                if (end > i + 1 && end < text.length() && text.charAt(end) == '>')
+                {
+                    italic.append("<i>").append(text, i + 1, end).append("</i>");
+                    i = end + 1;
+                    continue;
+                }
+            }
+            italic.append(text.charAt(i));
+            i++;
+        }
+
+        StringBuilder bold = new StringBuilder();
+        i = 0;
+        next:
+        while (i < italic.length())
+        {
+            for (String keyword : KEYWORDS)
+            {
+                if (italic.indexOf(keyword, i) == i)
+                {
+                    bold.append("<b>").append(keyword).append("</b>");
+                    i += keyword.length();
+                    continue next;
+                }
+            }
+            bold.append(italic.charAt(i));
+            i++;
+        }
+        return bold.toString();
+    }
+
+    static String randomRules(Random random, int pieces)
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < pieces; i++)
+        {
+            if (random.nextInt(3) == 0)
+            {
+                text.append(KEYWORDS.get(random.nextInt(KEYWORDS.size())));
+            }
+            else
+            {
+                text.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void testReferenceFormatterAgreesWithKnownText()
+    {
+        assertEquals("<b>Not Cumulative</b>. All <i>Fire</i> and <i>Netherworld</i> are smoked.",
+            referenceFormat("Not Cumulative. All <Fire> and <Netherworld> are smoked."));
+        assertEquals("<<i><b>Guts</b></i>> <Fi re>", referenceFormat("<<Guts>> <Fi re>"));
+        assertTrue(KEYWORDS.contains("Toast It"));
+    }
+
+    @Test
+    public void testRandomRulesMatchReference()
+    {
+        for (int run = 0; run < RUNS; run++)
+        {
+            long seed = 0x7b0000L + run;
+            Random random = new Random(seed);
+            // now and then a huge text
+            String text = randomRules(random, (random.nextInt(500) == 0)? 20000 : random.nextInt(30));
+            assertEquals("seed " + seed, referenceFormat(text), Main.toFormattedText(text));
+        }
+    }
+}
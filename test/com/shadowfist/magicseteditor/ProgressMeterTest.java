@@ -0,0 +1,37 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.shadowfist.magicseteditor.BuildListener.Stage;
+
+public class ProgressMeterTest
+{
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void testReportsRateAndTimeLeft()
+    {
+        ProgressMeter meter = new ProgressMeter(BuildListener.NONE, 5000);
+        assertNull(meter.update(Stage.EXPORT, 1, 101, 0));
+        assertNull(meter.update(Stage.EXPORT, 11, 101, 2 * SECOND));
+        assertEquals("export: 51 of 101, 10.0 per second, about 5s left", meter.update(Stage.EXPORT, 51, 101, 5 * SECOND));
+        assertNull(meter.update(Stage.EXPORT, 61, 101, 6 * SECOND));
+        assertEquals("export: 101 of 101 in 10.0s, 10.0 per second", meter.update(Stage.EXPORT, 101, 101, 10 * SECOND));
+    }
+
+    @Test
+    public void testStagesAreMeteredApart()
+    {
+        ProgressMeter meter = new ProgressMeter(BuildListener.NONE, 5000);
+        meter.update(Stage.ARTWORK, 1, 3, 0);
+        meter.update(Stage.TRANSFORM, 1, 2, SECOND);
+        assertEquals("transform: 2 of 2 in 1.0s, 1.0 per second", meter.update(Stage.TRANSFORM, 2, 2, 2 * SECOND));
+        assertEquals("artwork: 3 of 3 in 4.0s, 0.5 per second", meter.update(Stage.ARTWORK, 3, 3, 4 * SECOND));
+
+        // a stage run again starts over
+        meter.update(Stage.ARTWORK, 1, 2, 10 * SECOND);
+        assertEquals("artwork: 2 of 2 in 2.0s, 0.5 per second", meter.update(Stage.ARTWORK, 2, 2, 12 * SECOND));
+    }
+}
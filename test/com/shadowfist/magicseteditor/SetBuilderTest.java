@@ -0,0 +1,120 @@
+package com.shadowfist.magicseteditor;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SetBuilderTest
+{
+    private Path dir;
+    private Path csv;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("setbuilder");
+        csv = dir.resolve("cards.csv");
+        Files.write(csv, Arrays.asList("Title,Subtitle,Faction,CardType,Cost,Provides,Fighting,Power,Body,Text,Artist,Designer",
+            "Gambling House,,Lotus,Character,3,m,,1,,Guts. <Netherworld>.,,cgreene",
+            "Pagoda,,Lotus,Feng Shui Site,,,,,6,<Netherworld> Superleap.,,cgreene"), StandardCharsets.UTF_8);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+        {
+            for (Path file : stream)
+            {
+                files.add(file);
+            }
+        }
+        for (Path file : files)
+        {
+            Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    private BuildConfig config(String fileName) throws IOException
+    {
+        return BuildConfig.builder().inputUrl(csv.toUri().toURL()).mseSetFile(dir.resolve(fileName))
+            .copyright("playtest round 1").build();
+    }
+
+    @Test
+    public void testBuildReportsProgressAndSetText() throws Exception
+    {
+        final AtomicInteger transformed = new AtomicInteger();
+        final StringBuilder setText = new StringBuilder();
+        BuildResult result = new SetBuilder(config("test.mse-set")).listener(new BuildListener()
+        {
+            @Override
+            public void progress(Stage stage, int done, int total)
+            {
+                if (stage == Stage.TRANSFORM)
+                {
+                    transformed.incrementAndGet();
+                    assertEquals(2, total);
+                }
+            }
+        }).sink(new BuildSink()
+        {
+            @Override
+            public void setText(String text)
+            {
+                setText.append(text);
+            }
+        }).build();
+
+        assertEquals(2, transformed.get());
+        assertEquals(2, result.getCards());
+        assertNull("no mse.exe", result.getPdfFile());
+        assertTrue(setText.toString(), setText.toString().contains("\ttitle: Pagoda\n"));
+        try (ZipFile zip = new ZipFile(result.getMseSetFile().toFile()))
+        {
+            assertNotNull(zip.getEntry(MseSetReader.SET_ENTRY));
+        }
+    }
+
+    @Test
+    public void testConcurrentAsyncBuilds() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            List<CompletableFuture<BuildResult>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+            {
+                results.add(new SetBuilder(config("test" + i + ".mse-set")).executor(executor).buildAsync());
+            }
+            for (int i = 0; i < results.size(); i++)
+            {
+                BuildResult result = results.get(i).get();
+                assertEquals(dir.resolve("test" + i + ".mse-set"), result.getMseSetFile());
+                assertTrue(Files.exists(result.getMseSetFile()));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}